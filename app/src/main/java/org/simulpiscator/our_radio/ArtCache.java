@@ -0,0 +1,196 @@
+package org.simulpiscator.our_radio;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.simulpiscator.our_radio.SocketConnection.UTF8;
+
+// Cover art and station logos of a server, by song or stream URI. Decoded bitmaps
+// are kept in a memory LRU, and pictures as fetched in a disk cache, so art shows
+// without a round trip, and a stream's logo is fetched once rather than on each
+// title change. URIs the server has no picture for are remembered in memory only,
+// so they are asked for again in later sessions.
+class ArtCache {
+    private static final String TAG = "sp:artcache";
+    private static final int MAX_DISK_BYTES = 16 << 20;
+    private static final int MAX_MEMORY_BYTES = 8 << 20;
+    private static final int MAX_MISSING = 64;
+
+    interface Listener {
+        // Called on the disk handler's thread, with null if there is no picture.
+        void onArtAvailable(String uri, Bitmap art);
+    }
+
+    private final File mDir;
+    private final Handler mDiskHandler;
+    private final int mMaxSizePx;
+    private final ArtFetcher mFetcher = new ArtFetcher();
+    private final LruCache<String, Bitmap> mBitmaps = new LruCache<String, Bitmap>(MAX_MEMORY_BYTES) {
+        @Override
+        protected int sizeOf(String uri, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+    private final LruCache<String, Boolean> mMissing = new LruCache<>(MAX_MISSING);
+
+    // Bitmaps are scaled down by powers of two to at most twice maxSizePx.
+    ArtCache(File dir, Handler diskHandler, int maxSizePx) {
+        mDir = dir;
+        mDiskHandler = diskHandler;
+        mMaxSizePx = maxSizePx;
+    }
+
+    // One cache directory per server.
+    static File getDir(File cacheDir, String host, int port) {
+        String name = "art_" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port;
+        return new File(cacheDir, name);
+    }
+
+    File getDir() {
+        return mDir;
+    }
+
+    // Returns the bitmap if it is in memory. Otherwise returns null, and unless
+    // the URI is known to have no picture, looks for it on disk, then on the server,
+    // and calls the listener with the outcome. Fetch errors are not reported.
+    Bitmap get(final MpdThread thread, final String uri, final Listener listener) {
+        Bitmap art = mBitmaps.get(uri);
+        if (art != null || mMissing.get(uri) != null)
+            return art;
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap art = mBitmaps.get(uri); // may have been fetched meanwhile
+                if (art == null)
+                    art = read(uri);
+                if (art != null) {
+                    listener.onArtAvailable(uri, art);
+                    return;
+                }
+                mFetcher.fetch(thread, uri, new ArtFetcher.Listener() {
+                    @Override
+                    public void onArtFetched(String uri, byte[] picture) {
+                        store(uri, picture, listener);
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    private void store(final String uri, final byte[] picture, final Listener listener) {
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap art = picture != null ? decode(picture) : null;
+                if (art != null) {
+                    mBitmaps.put(uri, art);
+                    write(uri, picture);
+                } else {
+                    mMissing.put(uri, true);
+                }
+                listener.onArtAvailable(uri, art);
+            }
+        });
+    }
+
+    private Bitmap decode(byte[] picture) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (2 * options.inSampleSize) >= mMaxSizePx)
+            options.inSampleSize *= 2;
+        return BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+    }
+
+    private File getFile(String uri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(uri.getBytes(UTF8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest)
+                name.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            return new File(mDir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Decodes the picture on disk, and puts it into memory. The file's modification
+    // time is updated, so trim() removes the least recently used pictures first.
+    private Bitmap read(String uri) {
+        File file = getFile(uri);
+        if (!file.exists())
+            return null;
+        byte[] picture = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(picture);
+        } catch (IOException e) {
+            Log.w(TAG, "could not read " + file + ": " + e.getMessage());
+            return null;
+        }
+        Bitmap art = decode(picture);
+        if (art == null) {
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        mBitmaps.put(uri, art);
+        return art;
+    }
+
+    // Writes to a temporary file first, so a picture is never seen half written.
+    private void write(String uri, byte[] picture) {
+        File file = getFile(uri);
+        File tmp = new File(file.getPath() + ".tmp");
+        mDir.mkdirs();
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(picture);
+        } catch (IOException e) {
+            Log.w(TAG, "could not write " + file + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file))
+            tmp.delete();
+        trim();
+    }
+
+    // Deletes the least recently used pictures while the cache is too large.
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+        long total = 0;
+        for (File file : files)
+            total += file.length();
+        if (total <= MAX_DISK_BYTES)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_DISK_BYTES; ++i) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+}
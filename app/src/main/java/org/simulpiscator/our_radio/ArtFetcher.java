@@ -0,0 +1,161 @@
+package org.simulpiscator.our_radio;
+
+import android.util.Log;
+
+import static org.simulpiscator.our_radio.MpdParser.KEY_SIZE;
+
+// Fetches the cover art or station logo for a song or stream URI with albumart,
+// falling back to pictures embedded in files with readpicture. Pictures arrive in
+// chunks, which are requested one after another on the bulk lane. Only the first
+// chunk, before the picture's size is known, goes through a reused chunk buffer;
+// later chunks are read straight into the picture. Where the server supports
+// binarylimit, the chunk size is raised, but any chunk size the server sends is
+// accepted, so a reconnect that resets the limit only costs round trips.
+//
+// One picture is fetched at a time. A fetch requested meanwhile waits, and
+// replaces the one in progress at its next chunk. A fetch on another MpdThread
+// replaces it at once, as a stopped MpdThread drops its requests.
+class ArtFetcher {
+    private static final String TAG = "sp:artfetcher";
+    static final int BINARY_LIMIT = 65536;
+    static final int MAX_PICTURE_SIZE = 4 << 20; // larger pictures are not fetched
+
+    interface Listener {
+        // Called on the MpdThread with the picture, or with null if the server has
+        // none for uri. Not called if the fetch failed for other reasons.
+        void onArtFetched(String uri, byte[] picture);
+    }
+
+    private enum LimitSupport { unknown, supported, unsupported }
+
+    private byte[] mChunk = new byte[BINARY_LIMIT]; // guarded by this
+    private volatile LimitSupport mLimitSupport = LimitSupport.unknown;
+    private Fetch mCurrent, mNext; // guarded by this
+
+    void fetch(MpdThread thread, String uri, Listener listener) {
+        Fetch fetch = new Fetch(thread, uri, listener);
+        synchronized (this) {
+            if (mCurrent != null && mCurrent.mThread == thread) {
+                mNext = mCurrent.mUri.equals(uri) ? null : fetch;
+                return;
+            }
+            if (mCurrent != null) // may still be writing to the chunk buffer
+                mChunk = new byte[BINARY_LIMIT];
+            mCurrent = fetch;
+            mNext = null;
+            fetch.mChunk = mChunk;
+        }
+        fetch.start();
+    }
+
+    private static boolean isStream(String uri) {
+        return uri.contains("://");
+    }
+
+    private class Fetch extends MpdRequest.OnDoneListener {
+        final MpdThread mThread;
+        final String mUri;
+        final Listener mListener;
+        byte[] mChunk;
+        String mVerb = "albumart";
+        byte[] mPicture; // null until the size is known
+        int mOffset = 0;
+
+        Fetch(MpdThread thread, String uri, Listener listener) {
+            mThread = thread;
+            mUri = uri;
+            mListener = listener;
+        }
+
+        void start() {
+            if (mLimitSupport != LimitSupport.unknown) {
+                requestChunk();
+                return;
+            }
+            mThread.post(new MpdRequest("binarylimit " + BINARY_LIMIT, new MpdRequest.OnDoneListener() {
+                @Override
+                void onMpdRequestDone(MpdRequest request) {
+                    if (request.getError() == null)
+                        mLimitSupport = LimitSupport.supported;
+                    else if (request.getError().startsWith("ACK"))
+                        mLimitSupport = LimitSupport.unsupported;
+                    requestChunk();
+                }
+            }).setPriority(MpdRequest.Priority.bulk)
+                    .setStandalone(true)); // unknown to servers before 0.22
+        }
+
+        void requestChunk() {
+            MpdRequest chunk = new MpdRequest(mVerb + " " + MpdRequest.quote(mUri) + " " + mOffset, this)
+                    .setBinaryBuffer(mPicture != null ? mPicture : mChunk, mPicture != null ? mOffset : 0)
+                    .setPriority(MpdRequest.Priority.bulk)
+                    .setStandalone(true); // no art is a common ACK
+            if (mOffset == 0 && mLimitSupport == LimitSupport.supported) // the limit is per connection
+                mThread.post(new MpdRequest("binarylimit " + BINARY_LIMIT)
+                        .setPriority(MpdRequest.Priority.bulk).setStandalone(true), chunk);
+            else
+                mThread.post(chunk);
+        }
+
+        @Override
+        void onMpdRequestDone(MpdRequest request) {
+            String error = request.getError();
+            if (error != null && !error.startsWith("ACK")) {
+                Log.w(TAG, mVerb + " " + mUri + ": " + error);
+                finish(false);
+                return;
+            }
+            int size = error != null ? -1 : new MpdResult.RecordView(request.getResult(), 0).getInt(KEY_SIZE, -1);
+            if (size < 0) {
+                if (mVerb.equals("albumart") && !isStream(mUri)) {
+                    mVerb = "readpicture";
+                    requestChunk();
+                } else {
+                    finish(true);
+                }
+                return;
+            }
+            if (mPicture == null) {
+                if (size == 0 || size > MAX_PICTURE_SIZE) {
+                    finish(true);
+                    return;
+                }
+                mPicture = new byte[size];
+                System.arraycopy(mChunk, 0, mPicture, 0, request.getBinaryLength());
+            } else if (size != mPicture.length) { // the file changed between chunks
+                finish(false);
+                return;
+            }
+            mOffset += request.getBinaryLength();
+            if (mOffset == size)
+                finish(true);
+            else if (request.getBinaryLength() == 0 || isSuperseded())
+                finish(false);
+            else
+                requestChunk();
+        }
+
+        private boolean isSuperseded() {
+            synchronized (ArtFetcher.this) {
+                return mCurrent != this || mNext != null;
+            }
+        }
+
+        // Reports the outcome if it is final, and starts the next fetch.
+        private void finish(boolean report) {
+            if (report)
+                mListener.onArtFetched(mUri, mPicture != null && mOffset == mPicture.length ? mPicture : null);
+            Fetch next;
+            synchronized (ArtFetcher.this) {
+                if (mCurrent != this)
+                    return;
+                next = mCurrent = mNext;
+                mNext = null;
+                if (next != null)
+                    next.mChunk = mChunk;
+            }
+            if (next != null)
+                next.start();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package org.simulpiscator.our_radio;
+
+// A source of server-side change notifications. Changed subsystems are reported
+// through WsThread.Listener, using the OwnTone names "player", "volume" and
+// "outputs"; an empty subsystem name asks for a full refresh.
+interface ChangeNotifier {
+    void start(String host, int port);
+    void stop();
+}
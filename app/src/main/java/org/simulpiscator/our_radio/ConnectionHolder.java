@@ -0,0 +1,166 @@
+package org.simulpiscator.our_radio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+// Keeps the server connection, the MpdThread serving it, and the change notifier
+// alive for the whole process, so they survive activity pauses and are shared with
+// the alarm receiver. Users acquire and release the holder; once the last user has
+// released it, everything is closed after IDLE_TIMEOUT_MS.
+class ConnectionHolder implements MpdThread.Listener, WsThread.Listener {
+    private static final String TAG = MainActivity.TAG + ":holder";
+    static final int IDLE_TIMEOUT_MS = 60000;
+
+    // Receives errors and change notifications while acquired.
+    interface Listener extends MpdThread.Listener, WsThread.Listener {}
+
+    private static ConnectionHolder sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mIdleClose = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionHolder.this) {
+                if (mUsers == 0)
+                    close();
+            }
+        }
+    };
+    private int mUsers = 0;
+    private volatile Listener mListener;
+
+    private String mServer;
+    private SocketConnection mConnection, mBulkConnection;
+    private MpdThread mMpdThread;
+    private ChangeNotifier mNotifier;
+    private String mSessionConfig;
+
+    static synchronized ConnectionHolder getInstance() {
+        if (sInstance == null)
+            sInstance = new ConnectionHolder();
+        return sInstance;
+    }
+
+    // The listener may be null, for users not interested in notifications.
+    synchronized void acquire(Listener listener) {
+        ++mUsers;
+        if (listener != null)
+            mListener = listener;
+        mHandler.removeCallbacks(mIdleClose);
+    }
+
+    synchronized void release(Listener listener) {
+        if (listener != null && mListener == listener)
+            mListener = null;
+        if (--mUsers == 0)
+            mHandler.postDelayed(mIdleClose, IDLE_TIMEOUT_MS);
+    }
+
+    // Returns the open connection to the server, or calls open to connect to it,
+    // closing connections to any other server. Blocks while connecting.
+    synchronized SocketConnection connect(String host, int port, Callable<SocketConnection> open) throws Exception {
+        String server = host + ":" + port;
+        if (mConnection != null && mConnection.isConnected() && server.equals(mServer))
+            return mConnection;
+        close();
+        mConnection = open.call();
+        mServer = server;
+        return mConnection;
+    }
+
+    synchronized SocketConnection getConnection() {
+        return mConnection;
+    }
+
+    // Returns the running MpdThread if it was set up with the same configuration,
+    // or null after stopping a thread with a different configuration.
+    synchronized MpdThread getMpdThread(String config) {
+        if (mMpdThread != null && !config.equals(mSessionConfig))
+            closeSession();
+        return mMpdThread;
+    }
+
+    // Takes ownership of a started MpdThread, its bulk connection, and a started notifier.
+    // All must have been created with this holder as their listener.
+    synchronized void setSession(String config, MpdThread thread, SocketConnection bulkConnection, ChangeNotifier notifier) {
+        closeSession();
+        mSessionConfig = config;
+        mMpdThread = thread;
+        mBulkConnection = bulkConnection;
+        mNotifier = notifier;
+    }
+
+    synchronized void close() {
+        closeSession();
+        if (mConnection != null) {
+            try {
+                mConnection.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getClass() + ":" + e.getMessage());
+            }
+            mConnection = null;
+        }
+        mServer = null;
+    }
+
+    private void closeSession() {
+        if (mNotifier != null) {
+            mNotifier.stop();
+            mNotifier = null;
+        }
+        if (mMpdThread != null) {
+            mMpdThread.stop();
+            mMpdThread = null;
+        }
+        if (mBulkConnection != null) {
+            try {
+                mBulkConnection.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getClass() + ":" + e.getMessage());
+            }
+            mBulkConnection = null;
+        }
+        mSessionConfig = null;
+    }
+
+    @Override
+    public void onMpdError(Exception error) {
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onMpdError(error);
+        else
+            Log.e(TAG, error.getClass() + ":" + error.getMessage());
+    }
+
+    @Override
+    public void onMpdReconnected() {
+        synchronized (this) {
+            // the thread has replaced the connection it lost, and owns the new one
+            if (mMpdThread != null)
+                mConnection = mMpdThread.getConnection();
+        }
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onMpdReconnected();
+    }
+
+    @Override
+    public void onWsError(Exception error) {
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onWsError(error);
+        else
+            Log.e(TAG, error.getClass() + ":" + error.getMessage());
+    }
+
+    @Override
+    public void onWsSubsystemChange(String subsystem) {
+        Listener listener = mListener;
+        if (listener != null)
+            listener.onWsSubsystemChange(subsystem);
+    }
+}
@@ -0,0 +1,113 @@
+package org.simulpiscator.our_radio;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Builds the playlist tree lazily from the server's directory layout: each level
+// is fetched with lsinfo when it is first shown, and kept in its node. After a
+// level has been loaded, the first few directories in it are prefetched at bulk
+// priority, as the user is likely to open one of them next.
+class DirectoryBrowser implements TreePicker.Loader {
+    private static final int PREFETCH_COUNT = 4;
+
+    private final MpdThread mMpdThread;
+    private final Pattern mPattern;
+    private final Executor mUiExecutor;
+    private final TreeModel.Node mRoot;
+
+    DirectoryBrowser(MpdThread thread, String pattern, Executor uiExecutor) {
+        mMpdThread = thread;
+        mPattern = Pattern.compile(pattern);
+        mUiExecutor = uiExecutor;
+        mRoot = new TreeModel.Node(null, "");
+        mRoot.directory = "";
+        mRoot.loaded = false;
+    }
+
+    TreeModel.Node getRoot() {
+        return mRoot;
+    }
+
+    String getPattern() {
+        return mPattern.pattern();
+    }
+
+    @Override
+    public void load(TreeModel.Node node, Runnable done) {
+        fetch(node, MpdRequest.Priority.interactive, done);
+    }
+
+    private void fetch(final TreeModel.Node node, MpdRequest.Priority priority, final Runnable done) {
+        if (node.loaded) {
+            if (done != null)
+                mUiExecutor.execute(done);
+            return;
+        }
+        String command = node.directory.isEmpty() ? "lsinfo" : "lsinfo " + MpdRequest.quote(node.directory);
+        // shared, so opening a node that is being prefetched waits for the same response
+        mMpdThread.post(new MpdRequest(command, new MpdRequest.OnDoneListener() {
+            @Override
+            void onMpdRequestDone(MpdRequest request) {
+                if (request.getError() == null && setChildren(node, request.getResult()))
+                    prefetch(node);
+                if (done != null)
+                    mUiExecutor.execute(done);
+            }
+        }).setShared(true).setPriority(priority));
+    }
+
+    private void prefetch(TreeModel.Node node) {
+        int count = 0;
+        for (TreeModel.Node child : node.children) {
+            if (count >= PREFETCH_COUNT)
+                break;
+            if (child.value == null && !child.loaded) {
+                fetch(child, MpdRequest.Priority.bulk, null);
+                ++count;
+            }
+        }
+    }
+
+    // Returns false if the node had been loaded already.
+    private boolean setChildren(TreeModel.Node node, MpdResult result) {
+        synchronized (node) {
+            if (node.loaded)
+                return false;
+            ArrayList<TreeModel.Node> children = new ArrayList<>();
+            MpdResult.RecordView entry = new MpdResult.RecordView(result, -1);
+            while (entry.next()) {
+                String directory = entry.get(MpdParser.KEY_DIRECTORY);
+                String playlist = entry.get(MpdParser.KEY_PLAYLIST);
+                // a directory and a playlist may end up in the same record
+                if (directory != null && mayContainMatches(directory)) {
+                    TreeModel.Node child = new TreeModel.Node(node, baseName(directory));
+                    child.directory = directory;
+                    child.loaded = false;
+                    children.add(child);
+                }
+                if (playlist != null && mPattern.matcher(playlist).matches()) {
+                    TreeModel.Node child = new TreeModel.Node(node, baseName(playlist));
+                    child.value = playlist;
+                    children.add(child);
+                }
+            }
+            node.children = children;
+            TreeModel.finishChildren(node);
+            node.loaded = true;
+            return true;
+        }
+    }
+
+    // True if a playlist below the directory might match the pattern, i.e. if the
+    // matcher either matches the directory path, or needs more input to decide.
+    private boolean mayContainMatches(String directory) {
+        Matcher m = mPattern.matcher(directory + "/");
+        return m.matches() || m.hitEnd();
+    }
+
+    private static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,119 @@
+package org.simulpiscator.our_radio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+// Change notifications through MPD's idle command, on a dedicated connection.
+// Works with plain MPD servers, and avoids OwnTone's websocket handshake.
+class IdleThread implements ChangeNotifier {
+    private static final String TAG = "sp:idlethread";
+    private static final String IDLE_COMMAND = "idle player mixer output stored_playlist";
+    private static final int POLL_INTERVAL_MS = 250;
+
+    private volatile Thread mThread;
+    private volatile boolean mTerminate = false;
+    private int mTimeoutMs = 1000;
+    private String mHost;
+    private int mPort;
+
+    private final WsThread.Listener mListener;
+
+    protected void reportError(Exception error) {
+        if(mListener != null) {
+            mListener.onWsError(error);
+        } else {
+            Log.e(TAG, error.getClass() + ":" + error.getMessage());
+        }
+    }
+
+    IdleThread(WsThread.Listener listener) {
+        mListener = listener;
+    }
+
+    int getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    void setTimeoutMs(int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void start(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mTerminate = false;
+        mThread = new Thread(null, null, TAG) {
+            @Override
+            public void run() {
+                try {
+                    ioLoop();
+                } catch (Exception e) {
+                    reportError(e);
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    @Override
+    public void stop() {
+        if(mThread != null) {
+            mTerminate = true;
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                reportError(e);
+            }
+            mThread = null;
+        }
+    }
+
+    private void ioLoop() throws Exception {
+        SocketConnection connection = MpdConnector.connect(mHost, mPort, mTimeoutMs);
+        try {
+            if (mListener != null)
+                mListener.onWsSubsystemChange("");
+            while (!mTerminate) {
+                MpdRequest idle = new MpdRequest(IDLE_COMMAND);
+                waitForChanges(idle, connection);
+                if (idle.getError() != null)
+                    throw new MpdRequest.ProtocolErrorException(idle.getError());
+                MpdResult.RecordView changed = new MpdResult.RecordView(idle.getResult(), -1);
+                while (changed.next() && mListener != null)
+                    mListener.onWsSubsystemChange(toSubsystemName(changed.get(MpdParser.KEY_CHANGED)));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Sends the idle command, and waits for its response. On termination,
+    // idle is cancelled with noidle, to which the server responds immediately.
+    private void waitForChanges(MpdRequest idle, SocketConnection connection) throws IOException {
+        idle.send(connection);
+        int cancelledMs = -1;
+        while (!connection.waitForRead(POLL_INTERVAL_MS)) {
+            if (cancelledMs >= 0) {
+                cancelledMs += POLL_INTERVAL_MS;
+                if (cancelledMs > mTimeoutMs)
+                    throw new SocketTimeoutException();
+            } else if (mTerminate) {
+                connection.writeLine("noidle");
+                cancelledMs = 0;
+            }
+        }
+        idle.receive(connection, mTimeoutMs);
+    }
+
+    // Maps MPD subsystem names to those used by OwnTone's websocket.
+    private static String toSubsystemName(String subsystem) {
+        if ("mixer".equals(subsystem))
+            return "volume";
+        if ("output".equals(subsystem))
+            return "outputs";
+        return subsystem;
+    }
+}
@@ -5,14 +5,16 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.SystemClock;
 import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -23,6 +25,7 @@ import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.SeekBar;
 import android.widget.TableLayout;
@@ -31,52 +34,75 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.io.File;
 import java.net.ConnectException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static android.view.View.inflate;
 import static android.widget.Toast.LENGTH_LONG;
 import static android.widget.Toast.LENGTH_SHORT;
 
-public class MainActivity extends Activity implements MpdThread.Listener, WsThread.Listener {
+public class MainActivity extends Activity implements ConnectionHolder.Listener {
 
     static final String TAG = "sp:radio";
 
-    private static final String FILE_TAG = "file:";
-    private static final String STATION_TAG = "title:";
-    private static final String PROGRAM_TAG = "album:";
-    private static final String AUTHOR_TAG = "artist:";
-
     private static final int LENGTH_PERSISTENT = -1;
     private static final int mUIUpdateDelayMs = 1000;
+    private static final int mRefreshWindowMs = 150;
 
     private Alarm mAlarm;
 
     enum State {idle, playingInitiated, playing, stopInitiated, error}
 
-    static private class PlayerState {
-        String station = "", program = "", author = "";
-        volatile State state = State.idle;
-        int volume = -1;
-        ArrayList<Preferences.AudioOutput> outputs = new ArrayList<>();
+    // An immutable snapshot of the player state. Snapshots are built off the UI thread,
+    // and published through mState; each has a higher version than its predecessor.
+    static private final class PlayerState {
+        final long version;
+        final State state;
+        final String station, program, author;
+        final String uri; // of the current song or stream, for its art
+        final int volume;
+        final List<Preferences.AudioOutput> outputs;
+
+        PlayerState(long version, State state, String station, String program, String author,
+                    String uri, int volume, List<Preferences.AudioOutput> outputs) {
+            this.version = version;
+            this.state = state;
+            this.station = station;
+            this.program = program;
+            this.author = author;
+            this.uri = uri;
+            this.volume = volume;
+            this.outputs = Collections.unmodifiableList(outputs);
+        }
+
+        PlayerState withState(State s) {
+            return new PlayerState(version + 1, s, station, program, author, uri, volume, outputs);
+        }
     }
 
-    private final PlayerState mState = new PlayerState();
+    private final AtomicReference<PlayerState> mState = new AtomicReference<>(
+            new PlayerState(0, State.idle, "", "", "", "", -1, new ArrayList<Preferences.AudioOutput>()));
+    private long mRenderedVersion = -1; // accessed on UI thread only
     private Preferences mPreferences;
 
     private boolean mIsActive = false;
+    // owned by ConnectionHolder while acquired
+    private final ConnectionHolder mHolder = ConnectionHolder.getInstance();
+    private boolean mHolderAcquired = false;
+    private boolean mStartupPending = false;
+    private volatile long mStartupNs = 0;
     private SocketConnection mConnection;
-    private int mServerTimeoutMs;
     private MpdThread mMpdThread;
-    private WsThread mWsThread;
+    private PlayerBackend mBackend;
 
     private Handler mUIThreadHandler;
 
@@ -95,6 +121,8 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
     private StatusMessage mStatusMessage;
 
     private TextView mStationView, mProgramView, mAuthorView, mRemainingSleepView;
+    private ImageView mArtView;
+    private String mArtUri = ""; // accessed on UI thread only
     private Button mPlayButton, mStopButton;
     private SeekBar mVolumeBar;
     private LinearLayout mOutputs;
@@ -124,37 +152,24 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         private volatile Handler mHandler;
     }
     private BackgroundThread mBackgroundThread;
-    private <V extends Object> V runInBackground(final Callable<V> callable) throws Exception {
-        class Data { volatile V result; volatile Exception error; };
-        final Data data = new Data();
-        Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    data.result = callable.call();
-                } catch (Exception e) {
-                    data.error = e;
-                }
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        throw new RuntimeException();
-                    }
-                });
-            }
-        };
-        mBackgroundThread.post(runnable);
-        try { Looper.loop(); } catch(RuntimeException ignored) {}
-        if(data.error != null)
-            throw data.error;
-        return data.result;
-    }
-
+    private RefreshScheduler mRefreshScheduler;
+    private volatile PlaylistCatalog mCatalog;
+    private ArtCache mArtCache;
+    private volatile DirectoryBrowser mBrowser;
     @Override
     public void onMpdError(Exception error) {
         onError(error);
     }
 
+    @Override
+    public void onMpdReconnected() {
+        runOnUiThread(() -> {
+            mConnection = mHolder.getConnection();
+            setStatusMessage(getString(R.string.msg_reconnected), LENGTH_SHORT);
+            onWsSubsystemChange(""); // changes may have been missed while disconnected
+        });
+    }
+
     @Override
     public void onWsError(Exception error) { onError(error); }
 
@@ -176,14 +191,27 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         });
     }
 
+    // The notifier starts while MPD is still connecting, so this may be called
+    // before onConnected(); the catalog is then caught up by onConnected().
     @Override
     public void onWsSubsystemChange(String subsystem) {
-        if(mState.state != State.error) {
-            try {
-                updatePlayerState();
-            } catch(Exception e) {
-                onError(e);
-            }
+        if(mState.get().state == State.error)
+            return;
+        try {
+            mRefreshScheduler.schedule(subsystem);
+            if(PlaylistCatalog.isAffectedBy(subsystem))
+                mBrowser = null;
+            if(mPreferences.getBrowseDirectories())
+                return; // levels are fetched on demand
+            PlaylistCatalog catalog = mCatalog;
+            if(catalog == null)
+                return;
+            if(subsystem.isEmpty())
+                catalog.refresh(mMpdThread, null);
+            else if(PlaylistCatalog.isAffectedBy(subsystem))
+                catalog.invalidate(mMpdThread);
+        } catch(Exception e) {
+            onError(e);
         }
     }
 
@@ -227,135 +255,184 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         }
     }
 
-    private void updatePlayerState() throws Exception {
-        if (mConnection == null)
-            return;
+    // Fetches the parts of the player state selected by the RefreshScheduler flags
+    // through the backend, and applies all of them at once.
+    private class PlayerStateRefresh implements PlayerBackend.StateListener {
+        private final int mQueries;
 
-        synchronized (mState) {
-            if (mState.state != State.error) {
-                MpdRequest request = new MpdRequest("status");
-                if(request.process(mConnection, mServerTimeoutMs)) {
-                    MpdRequest.Result r = request.getResult();
-                    if(r.isEmpty())
-                        throw new MpdRequest.ProtocolErrorException("non-empty result expected");
-
-                    final HashMap<String, String> entry = r.get(0);
-                    if (entry.containsKey("volume:"))
-                        mState.volume = Integer.decode(entry.get("volume:"));
-                    if (entry.containsKey("state:")) {
-                        String s = entry.get("state:");
-                        if (s.equals("play")) {
-                            mState.state = State.playing;
-                        } else {
-                            mState.state = State.idle;
-                        }
-                    }
-                }
-                MpdRequest.Result r = null;
-                if (mState.state == State.playing) {
-                    request = new MpdRequest("currentsong");
-                    if(request.process(mConnection, mServerTimeoutMs) && !request.getResult().isEmpty()) {
-                        r = request.getResult();
-                    }
-                }
-                if (r == null)
-                    r = new MpdRequest.Result();
-                if (r.isEmpty())
-                    r.add(new HashMap<String, String>());
-                HashMap<String, String> info = r.get(0);
-                mState.station = info.get(STATION_TAG);
-                mState.program = info.get(PROGRAM_TAG);
-                mState.author = info.get(AUTHOR_TAG);
-                if (mState.station == null)
-                    mState.station = "";
-                if (mState.program == null)
-                    mState.program = "";
-                if (mState.author == null)
-                    mState.author = "";
-                if (mState.state != State.playing) { // avoid stale data
-                    mState.program = "";
-                    mState.author = "";
+        PlayerStateRefresh(int queries) {
+            mQueries = queries;
+        }
+
+        void post() {
+            mBackend.fetchState(mQueries, this);
+        }
+
+        @Override
+        public void onState(PlayerBackend.Snapshot snapshot) {
+            try {
+                if (snapshot.error != null)
+                    throw new MpdRequest.ProtocolErrorException(snapshot.error);
+                apply(snapshot);
+            } catch (Exception e) {
+                onError(e);
+            }
+        }
+
+        private void apply(PlayerBackend.Snapshot snapshot) {
+            PlayerState previous, next;
+            do {
+                previous = mState.get();
+                if (previous.state == State.error)
+                    return;
+                next = applyTo(previous, snapshot);
+            } while (!mState.compareAndSet(previous, next));
+            if (mStartupNs != 0) {
+                logStartupStage("first player state");
+                mStartupNs = 0;
+            }
+            if ((mQueries & RefreshScheduler.CURRENT_SONG) == 0 && next.state == State.playing
+                    && previous.state != State.playing)
+                mRefreshScheduler.schedule(RefreshScheduler.CURRENT_SONG);
+            runOnUiThread(mOnPlayerStateUpdate);
+        }
+
+        private PlayerState applyTo(PlayerState previous, PlayerBackend.Snapshot snapshot) {
+            State state = previous.state;
+            int volume = previous.volume;
+            String station = previous.station, program = previous.program, author = previous.author;
+            String uri = previous.uri;
+            List<Preferences.AudioOutput> outputs = previous.outputs;
+            if (snapshot.volume >= 0)
+                volume = snapshot.volume;
+            if (snapshot.playing != null)
+                state = snapshot.playing ? State.playing : State.idle;
+            if (snapshot.song != null) {
+                PlayerBackend.Song song = state == State.playing ? snapshot.song : new PlayerBackend.Song();
+                station = song.title;
+                program = song.album;
+                author = song.artist;
+                uri = song.uri;
+                if (state != State.playing) { // avoid stale data
+                    program = "";
+                    author = "";
                 } else {
-                    if (mState.station.equals(mState.program))
-                        mState.program = "";
-                    if (mState.station.equals(mState.author))
-                        mState.author = "";
+                    if (station.equals(program))
+                        program = "";
+                    if (station.equals(author))
+                        author = "";
                 }
-                mState.station = cleanupString(mState.station);
-                mState.program = cleanupString(mState.program);
-                mState.author = cleanupString(mState.author);
-
-                mState.outputs = new ArrayList<Preferences.AudioOutput>();
-                request = new MpdRequest("outputs");
-                if (request.process(mConnection, mServerTimeoutMs)) {
-                    for (HashMap<String, String> entry : request.getResult()) {
-                        Preferences.AudioOutput output = new Preferences.AudioOutput();
-                        output.id = entry.get("outputid:");
-                        output.name = entry.get("outputname:");
-                        output.enabled = Integer.decode(entry.get("outputenabled:"));
-                        mState.outputs.add(output);
-                    }
+                station = cleanupString(station);
+                program = cleanupString(program);
+                author = cleanupString(author);
+            }
+            if (snapshot.outputs != null) {
+                outputs = new ArrayList<Preferences.AudioOutput>();
+                for (PlayerBackend.Output entry : snapshot.outputs) {
+                    Preferences.AudioOutput output = new Preferences.AudioOutput();
+                    output.id = entry.id;
+                    output.name = entry.name;
+                    output.enabled = entry.enabled ? 1 : 0;
+                    outputs.add(output);
                 }
             }
+            return new PlayerState(previous.version + 1, state, station, program, author, uri, volume, outputs);
         }
-        runOnUiThread(mOnPlayerStateUpdate);
+    }
+
+    private void setPlayerState(State s) {
+        PlayerState previous;
+        do {
+            previous = mState.get();
+        } while (!mState.compareAndSet(previous, previous.withState(s)));
+    }
+
+    private void updatePlayerState(int queries) {
+        if (mConnection == null || mState.get().state == State.error)
+            return;
+        new PlayerStateRefresh(queries).post();
     }
 
     private final OnCheckedChangeListener mOnOutputCheckedChange = new OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(CompoundButton b, boolean checked) {
-            MpdRequest request = new MpdRequest((checked ? "enableoutput " : "disableoutput ") + b.getTag());
-            mMpdThread.post(request);
+            mBackend.setOutput((String) b.getTag(), checked);
             b.setEnabled(false);
         }
     };
 
     private void onPlayerStateUpdate() {
-        synchronized (mState) {
-            if (mState.state == State.playing) {
-                mStationView.setText(mState.station);
-                mProgramView.setText(mState.program);
-                mAuthorView.setText(mState.author);
-            } else {
-                mStationView.setText("");
-                mProgramView.setText(R.string.not_playing);
-                mAuthorView.setText("");
-            }
-            if (mState.state == State.error) {
-                mPlayButton.setEnabled(false);
-                mStopButton.setEnabled(false);
-                mVolumeBar.setEnabled(false);
-                mVolumeBar.setProgress(50);
-            } else {
-                mPlayButton.setEnabled(mState.state != State.playingInitiated);
-                mStopButton.setEnabled(mState.state == State.playing);
-                mVolumeBar.setEnabled(true);
-                if (mState.volume >= 0)
-                    mVolumeBar.setProgress(mState.volume);
-            }
-            List<Preferences.AudioOutput> outputs = new ArrayList<>();
-            for (Preferences.AudioOutput output : mState.outputs)
-                if (mPreferences.isOutputVisible(output))
-                    outputs.add(output);
-            while (mOutputs.getChildCount() < outputs.size())
-                mOutputs.addView(new ToggleButton(this));
-            while (mOutputs.getChildCount() > outputs.size())
-                mOutputs.removeViewAt(0);
-            for (int i = 0; i < outputs.size(); ++i) {
-                ToggleButton b = (ToggleButton) mOutputs.getChildAt(i);
-                Preferences.AudioOutput output = outputs.get(i);
-                b.setOnCheckedChangeListener(null);
-                b.setTextOn(output.name);
-                b.setTextOff(output.name);
-                b.setTag(output.id);
-                b.setChecked(output.enabled != 0);
-                b.setEnabled(mState.state != State.error);
-                b.setOnCheckedChangeListener(mOnOutputCheckedChange);
-            }
+        final PlayerState state = mState.get();
+        if (state.version == mRenderedVersion)
+            return;
+        mRenderedVersion = state.version;
+        if (state.state == State.playing) {
+            mStationView.setText(state.station);
+            mProgramView.setText(state.program);
+            mAuthorView.setText(state.author);
+        } else {
+            mStationView.setText("");
+            mProgramView.setText(R.string.not_playing);
+            mAuthorView.setText("");
+        }
+        String artUri = state.state == State.playing ? state.uri : "";
+        if (!artUri.equals(mArtUri))
+            showArt(artUri);
+        if (state.state == State.error) {
+            mPlayButton.setEnabled(false);
+            mStopButton.setEnabled(false);
+            mVolumeBar.setEnabled(false);
+            mVolumeBar.setProgress(50);
+        } else {
+            mPlayButton.setEnabled(state.state != State.playingInitiated);
+            mStopButton.setEnabled(state.state == State.playing);
+            mVolumeBar.setEnabled(true);
+            if (state.volume >= 0)
+                mVolumeBar.setProgress(state.volume);
+        }
+        List<Preferences.AudioOutput> outputs = new ArrayList<>();
+        for (Preferences.AudioOutput output : state.outputs)
+            if (mPreferences.isOutputVisible(output))
+                outputs.add(output);
+        while (mOutputs.getChildCount() < outputs.size())
+            mOutputs.addView(new ToggleButton(this));
+        while (mOutputs.getChildCount() > outputs.size())
+            mOutputs.removeViewAt(0);
+        for (int i = 0; i < outputs.size(); ++i) {
+            ToggleButton b = (ToggleButton) mOutputs.getChildAt(i);
+            Preferences.AudioOutput output = outputs.get(i);
+            b.setOnCheckedChangeListener(null);
+            b.setTextOn(output.name);
+            b.setTextOff(output.name);
+            b.setTag(output.id);
+            b.setChecked(output.enabled != 0);
+            b.setEnabled(state.state != State.error);
+            b.setOnCheckedChangeListener(mOnOutputCheckedChange);
         }
         mOutputs.setVisibility(View.GONE);
         mOutputs.setVisibility(View.VISIBLE);
     }
+    // Shows the picture for the current song or stream, once it is available.
+    private void showArt(String uri) {
+        Bitmap art = null;
+        if (uri.isEmpty() || mArtCache != null) {
+            mArtUri = uri;
+            if (!uri.isEmpty())
+                art = mArtCache.get(mMpdThread, uri, (u, bitmap) -> runOnUiThread(() -> {
+                    if (u.equals(mArtUri))
+                        setArt(bitmap);
+                }));
+        } else {
+            mArtUri = null; // retried once connected
+        }
+        setArt(art);
+    }
+
+    private void setArt(Bitmap art) {
+        mArtView.setImageBitmap(art);
+        mArtView.setVisibility(art != null ? View.VISIBLE : View.GONE);
+    }
+
     private final Runnable mOnPlayerStateUpdate = () -> {
         try {
             onPlayerStateUpdate();
@@ -383,35 +460,23 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
 
     private void play(String playlist) {
         setStatusMessage(getString(R.string.msg_loading_playlist), LENGTH_PERSISTENT);
-        mMpdThread.post(new MpdRequest("clear"));
-        mMpdThread.post(new MpdRequest("load \"" + playlist + "\""));
-        mMpdThread.post(new MpdRequest("play", new MpdRequest.OnDoneListener() {
-            @Override
-            void onMpdRequestDone(final MpdRequest request) {
-                runOnUiThread(() -> {
-                    clearStatusMessage();
-                    if(request.getError() != null)
-                        setStatusMessage(request.getError(), LENGTH_LONG);
-                });
-
-            }
+        mBackend.play(playlist, error -> runOnUiThread(() -> {
+            clearStatusMessage();
+            if (error != null)
+                setStatusMessage(error, LENGTH_LONG);
         }));
     }
 
     private void stop() {
         setSleep(-1);
-        mMpdThread.post(new MpdRequest("stop", new MpdRequest.OnDoneListener() {
-            @Override
-            void onMpdRequestDone(MpdRequest request) {
-                mState.state = State.stopInitiated;
-                runOnUiThread(mOnPlayerStateUpdate);
-            }
-        }));
+        mBackend.stop(error -> {
+            setPlayerState(State.stopInitiated);
+            runOnUiThread(mOnPlayerStateUpdate);
+        });
     }
 
     private void setVolume(int percent) {
-        String command = "setvol " + percent;
-        mMpdThread.post(new MpdRequest(command));
+        mBackend.setVolume(percent);
     }
 
     private long getSleep() {
@@ -422,6 +487,7 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
     }
 
     private void setSleep(int ms) {
+        SleepFadeService.cancel(this); // a fade in progress restores the volume
         long sleepTimeMs = -1L;
         if (ms > 0) {
             sleepTimeMs = System.currentTimeMillis() + ms;
@@ -433,15 +499,21 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         mPreferences.setSleepTimeMs(sleepTimeMs);
     }
 
-    private void pickPlaylist(MpdRequest.Result r) {
-        final ArrayList<String> playlists = new ArrayList<String>();
+    private void pickPlaylist() {
+        if (mCatalog == null)
+            return;
         String pattern = mPreferences.getPlaylistPattern();
-        if (r != null) {
-            for (HashMap<String, String> entry : r) {
-                String name = entry.get("playlist:");
-                if (name != null && name.matches(pattern))
-                    playlists.add(name);
-            }
+        if (mPreferences.getBrowseDirectories()) {
+            browsePlaylists(pattern);
+            return;
+        }
+        List<String> playlists = mCatalog.get(pattern);
+        if (playlists == null) { // not fetched yet
+            mCatalog.refresh(mMpdThread, catalog -> runOnUiThread(() -> {
+                if (catalog.isAvailable())
+                    pickPlaylist();
+            }));
+            return;
         }
         if (playlists.isEmpty()) {
             Toast.makeText(this, getString(R.string.message_playlist_no_match, pattern), LENGTH_LONG).show();
@@ -451,33 +523,23 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         int pos = prefix.lastIndexOf('/');
         if(pos >= 0 && pos < prefix.length() - 1)
             prefix = prefix.substring(0, pos + 1);
-        TreePicker.Node root = TreePicker.MakeTree(playlists, prefix);
-        TreePicker.Node.Visitor visitor = new TreePicker.Node.Visitor() {
-            @Override
-            public void visit(TreePicker.Node node) {
-                // sort children
-                Collections.sort(node.children, new Comparator<TreePicker.Node>() {
-                    @Override
-                    public int compare(TreePicker.Node lhs, TreePicker.Node rhs) {
-                        return lhs.name.compareTo(rhs.name);
-                    }
-                });
-                // format name
-                String s = node.name;
-                int pos = s.lastIndexOf('.');
-                if(pos > 0)
-                    s = s.substring(0, pos);
-                s = s.replaceFirst("^[0-9]+_", "");
-                node.name = s;
-                if(node.value == null)
-                    node.name += "…";
-            }
-        };
-        root.visit(visitor);
+        TreeModel.Node root = TreeModel.MakeTree(playlists, prefix);
         TreePicker.Builder b = new TreePicker.Builder(this);
         b.setTitle(R.string.play_button_text);
         b.setRoot(root, node -> play(node.value));
-        b.setNegativeButton(android.R.string.cancel, null);
+        b.create().show();
+    }
+
+    private void browsePlaylists(String pattern) {
+        DirectoryBrowser browser = mBrowser;
+        if (browser == null || !browser.getPattern().equals(pattern)) {
+            browser = new DirectoryBrowser(mMpdThread, pattern, this::runOnUiThread);
+            mBrowser = browser;
+        }
+        TreePicker.Builder b = new TreePicker.Builder(this);
+        b.setTitle(R.string.play_button_text);
+        b.setLoader(browser);
+        b.setRoot(browser.getRoot(), node -> play(node.value));
         b.create().show();
     }
 
@@ -543,20 +605,18 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         mPreferences = Preferences.getInstance(this);
 
         mBackgroundThread = new BackgroundThread();
-        mMpdThread = new MpdThread(this);
-        mWsThread = new WsThread(this);
+        mRefreshScheduler = new RefreshScheduler(new Handler(mBackgroundThread.getLooper()),
+                mRefreshWindowMs, this::updatePlayerState);
+        mMpdThread = new MpdThread(this); // not started, until connected
+        mBackend = new MpdBackend(mMpdThread, false);
 
         mStationView = findViewById(R.id.station);
         mProgramView = findViewById(R.id.program);
         mAuthorView = findViewById(R.id.author);
+        mArtView = findViewById(R.id.art);
 
         mPlayButton = findViewById(R.id.playButton);
-        mPlayButton.setOnClickListener(view -> mMpdThread.post(new MpdRequest("listplaylists", new MpdRequest.OnDoneListener() {
-            @Override
-            void onMpdRequestDone(final MpdRequest request) {
-                runOnUiThread(() -> pickPlaylist(request.getResult()));
-            }
-        })));
+        mPlayButton.setOnClickListener(view -> pickPlaylist());
 
         mRemainingSleepView = findViewById(R.id.remaining_sleep);
         mStopButton = findViewById(R.id.stopButton);
@@ -594,6 +654,9 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
             case R.id.menu_item_sleep:
                 pickSleep();
                 break;
+            case R.id.menu_item_metrics:
+                startActivity(new Intent(this, MetricsActivity.class));
+                break;
             case R.id.menu_item_quit:
                 finish();
                 break;
@@ -636,80 +699,191 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         super.finalize();
     }
 
+    // Starts connecting without blocking the UI thread. The MPD connection, an optional
+    // bulk connection, and the change notifier are opened in parallel, and the UI is
+    // updated as each stage completes. Stage times are logged relative to mStartupNs.
     private void establishServerConnections() {
         try {
-            if (mConnection != null && mConnection.isConnected())
+            if (mStartupPending || (mConnection != null && mConnection.isConnected()))
                 return;
+            if (!mHolderAcquired) {
+                mHolder.acquire(this);
+                mHolderAcquired = true;
+            }
+            mStartupNs = System.nanoTime();
 
             final String host = mPreferences.getServerName();
             final int port = mPreferences.getServerPort();
             final int wsport = mPreferences.getServerWsPort();
             final int timeoutMs = mPreferences.getServerTimeoutMs();
+            // reuse the running session, unless settings have changed while paused
+            final String config = TextUtils.join(",", new Object[]{host, port, wsport, timeoutMs,
+                    mPreferences.getPipelineWindow(), mPreferences.getBulkConnection(),
+                    mPreferences.getNotifySource(), mPreferences.getNotifyHeartbeatS(),
+                    mPreferences.getCrossFadeDurationMs(),
+                    mPreferences.getShuffle(), mPreferences.getRepeat(),
+                    mPreferences.getPlayerBackend(), mPreferences.getServerHttpPort()});
+            MpdThread thread = mHolder.getMpdThread(config);
+            if (thread != null) {
+                mMpdThread = thread;
+                setBackend(createBackend(host, timeoutMs));
+                mConnection = mHolder.getConnection();
+                openArtCache(host, port);
+                logStartupStage("session resumed");
+                onWsSubsystemChange(""); // notifications were dropped while paused
+                return;
+            }
             setStatusMessage(getString(R.string.msg_connecting, host, port), LENGTH_PERSISTENT);
-            Callable<SocketConnection> connect = () -> {
-                SocketConnection c = new SocketConnection(host, port);
-                if (!c.waitForRead(timeoutMs))
-                    throw new MpdRequest.ProtocolErrorException("MPD connection timeout");
-                String s = c.readLine();
-                if (!s.startsWith("OK "))
+            final Callable<SocketConnection> connect = () -> {
+                try {
+                    return MpdConnector.connect(host, port, timeoutMs);
+                } catch (MpdRequest.ProtocolErrorException e) {
                     throw new MpdRequest.ProtocolErrorException(getString(R.string.msg_unexpected_server_response));
-                return c;
+                }
             };
-            try {
-                mConnection = runInBackground(connect);
-            } catch (ConnectException e1) {
+            // requests queue up until the thread is started with a connection
+            final MpdThread newThread = new MpdThread(mHolder);
+            newThread.post(
+                    new MpdRequest("crossfade " + (mPreferences.getCrossFadeDurationMs() / 1000)),
+                    new MpdRequest("random " + (mPreferences.getShuffle() ? "1" : "0")),
+                    new MpdRequest("repeat " + (mPreferences.getRepeat() ? "1" : "0")));
+            newThread.setTimeoutMs(timeoutMs);
+            newThread.setPipelineWindow(mPreferences.getPipelineWindow());
+            newThread.setReconnect(connect, connect);
+            mMpdThread = newThread;
+            setBackend(createBackend(host, timeoutMs));
+            final ChangeNotifier notifier;
+            if (mPreferences.getNotifySource() == Preferences.NotifySource.idle) {
+                IdleThread idleThread = new IdleThread(mHolder);
+                idleThread.setTimeoutMs(timeoutMs);
+                notifier = idleThread;
+                notifier.start(host, port);
+            } else {
+                WsThread wsThread = new WsThread(mHolder);
+                wsThread.setHeartbeatS(mPreferences.getNotifyHeartbeatS());
+                notifier = wsThread;
+                notifier.start(host, wsport);
+            }
+            final FutureTask<SocketConnection> bulkConnect =
+                    mPreferences.getBulkConnection() ? new FutureTask<>(connect) : null;
+            if (bulkConnect != null)
+                new Thread(bulkConnect, TAG + ":bulkconnect").start();
+            mStartupPending = true;
+            mBackgroundThread.post(() -> {
+                SocketConnection connection;
                 try {
-                    if (!isWifiEnabled()) {
-                        if (checkEnableWifiState()) {
-                            restart();
-                        } else {
-                            throw e1;
-                        }
+                    connection = mHolder.connect(host, port, connect);
+                } catch (Exception e) {
+                    notifier.stop();
+                    if (bulkConnect != null)
+                        closeWhenDone(bulkConnect);
+                    runOnUiThread(() -> onConnectFailed(e, host, port));
+                    return;
+                }
+                logStartupStage("MPD connection");
+                SocketConnection bulkConnection = null;
+                if (bulkConnect != null) {
+                    try {
+                        bulkConnection = bulkConnect.get();
+                        logStartupStage("bulk connection");
+                    } catch (Exception e) {
+                        onError(e); // bulk requests will share the main connection
                     }
-                } catch (Exception e2) {
-                    mConnection = null;
-                    onError(e2);
                 }
-            }
-            if (mConnection != null) {
-                mState.state = State.idle;
-                onNotification(getString(R.string.message_mpd_connected, host, port));
-            } else {
-                mState.state = State.error;
-                throw new Exception(getString(R.string.message_mpd_fail, host, port));
-            }
-            mServerTimeoutMs = timeoutMs;
-            for (String command : new String[]{
-                    "crossfade " + (mPreferences.getCrossFadeDurationMs() / 1000),
-                    "random " + (mPreferences.getShuffle() ? "1" : "0"),
-                    "repeat " + (mPreferences.getRepeat() ? "1" : "0"),
-            })
-                mMpdThread.post(new MpdRequest(command));
-            mMpdThread.setTimeoutMs(timeoutMs);
-            mMpdThread.start(mConnection);
-            mWsThread.start(host, wsport);
+                newThread.start(connection, bulkConnection);
+                mHolder.setSession(config, newThread, bulkConnection, notifier);
+                runOnUiThread(() -> onConnected(connection, host, port));
+            });
         } catch(Exception e) {
             onError(e);
         }
     }
 
+    private PlayerBackend createBackend(String host, int timeoutMs) {
+        if (mPreferences.getPlayerBackend() == Preferences.PlayerBackendType.owntone)
+            return new OwnToneBackend(host, mPreferences.getServerHttpPort(), timeoutMs);
+        return new MpdBackend(mMpdThread, mPreferences.getFastStart());
+    }
+
+    private void setBackend(PlayerBackend backend) {
+        mBackend.close();
+        mBackend = backend;
+    }
+
+    private void onConnected(SocketConnection connection, String host, int port) {
+        mStartupPending = false;
+        mConnection = connection;
+        clearStatusMessage();
+        setPlayerState(State.idle);
+        onNotification(getString(R.string.message_mpd_connected, host, port));
+        File catalogFile = PlaylistCatalog.getFile(getCacheDir(), host, port);
+        if (mCatalog == null || !mCatalog.getFile().equals(catalogFile)) {
+            mCatalog = new PlaylistCatalog(catalogFile, new Handler(mBackgroundThread.getLooper()));
+            mCatalog.load(null);
+        }
+        openArtCache(host, port);
+        onWsSubsystemChange("");
+    }
+
+    private void openArtCache(String host, int port) {
+        File artDir = ArtCache.getDir(getCacheDir(), host, port);
+        if (mArtCache == null || !mArtCache.getDir().equals(artDir)) {
+            mArtCache = new ArtCache(artDir, new Handler(mBackgroundThread.getLooper()),
+                    getResources().getDisplayMetrics().widthPixels);
+            mArtUri = null;
+        }
+    }
+
+    private void onConnectFailed(Exception error, String host, int port) {
+        mStartupPending = false;
+        mConnection = null;
+        clearStatusMessage();
+        setPlayerState(State.error);
+        onPlayerStateUpdate();
+        if (!(error instanceof ConnectException))
+            onError(error);
+        else if (!isWifiEnabled())
+            checkEnableWifiState(error);
+        else
+            onError(new Exception(getString(R.string.message_mpd_fail, host, port)));
+    }
+
+    private static void closeWhenDone(final FutureTask<SocketConnection> connect) {
+        new Thread(() -> {
+            try {
+                connect.get().close();
+            } catch (Exception ignored) {
+            }
+        }).start();
+    }
+
+    private void logStartupStage(String stage) {
+        long startNs = mStartupNs;
+        if (startNs != 0)
+            Log.d(TAG, "startup: " + stage + " after " + (System.nanoTime() - startNs) / 1000000 + " ms");
+    }
+
     private boolean isWifiEnabled() {
         WifiManager wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         return wm != null && wm.isWifiEnabled();
     }
 
-    private boolean checkEnableWifiState() throws Exception {
-        boolean didEnable = false;
+    // Restarts once wifi has been enabled, or reports the connection error.
+    private void checkEnableWifiState(final Exception connectError) {
         Preferences.WifiOptions enableWifi = mPreferences.getEnableWifi();
         if (enableWifi == Preferences.WifiOptions.enable) {
             setStatusMessage(getString(R.string.msg_enabling_wifi), LENGTH_PERSISTENT);
-            didEnable = runInBackground(new Callable<Boolean>() {
-                @Override
-                public Boolean call() throws Exception {
-                    return enableWifi();
-                }
+            mBackgroundThread.post(() -> {
+                final boolean didEnable = enableWifi();
+                runOnUiThread(() -> {
+                    clearStatusMessage();
+                    if (didEnable)
+                        restart();
+                    else
+                        onError(connectError);
+                });
             });
-            clearStatusMessage();
+            return;
         } else if(enableWifi == Preferences.WifiOptions.ask) {
             AlertDialog.Builder b = new AlertDialog.Builder(this);
             b.setTitle(R.string.dialog_wifi_title);
@@ -735,7 +909,7 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
             });
             b.setCancelable(true).create().show();
         }
-        return didEnable;
+        onError(connectError);
     }
 
     private void restart() {
@@ -760,13 +934,16 @@ public class MainActivity extends Activity implements MpdThread.Listener, WsThre
         return isConnected;
     }
 
+    // Leaves connections to ConnectionHolder, which closes them when idle.
     private void shutdownServerConnections() {
         try {
-            mWsThread.stop();
-            mMpdThread.stop();
-            if(mConnection != null) {
-                mConnection.close();
-                mConnection = null;
+            mRefreshScheduler.cancel();
+            mBackend.close(); // replaced when connecting again
+            mBrowser = null; // may have pending levels
+            mConnection = null;
+            if(mHolderAcquired) {
+                mHolder.release(this);
+                mHolderAcquired = false;
             }
         } catch(Exception e) {
             onError(e);
@@ -0,0 +1,267 @@
+package org.simulpiscator.our_radio;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Process-wide latency histograms and counters, for MetricsActivity and bug reports.
+// Recording only updates preallocated atomics, so it may be done for every request.
+final class Metrics {
+    // Commands with a histogram of their own. Others are counted as OTHER.
+    private static final String[] VERBS = {
+            "status", "currentsong", "outputs", "listplaylists", "lsinfo", "load", "play",
+            "stop", "clear", "setvol", "crossfade", "random", "repeat", "enableoutput",
+            "disableoutput", "idle", "ping", "albumart", "readpicture",
+    };
+    static final int OTHER = VERBS.length;
+    private static final int MAX_CONNECTIONS = 8; // closed ones are dropped first
+
+    private static final Histogram[] sCommandLatency = new Histogram[VERBS.length + 1];
+    private static final Histogram[] sQueueWait = new Histogram[MpdRequest.Priority.values().length];
+    private static final AtomicIntegerArray sQueueDepth = new AtomicIntegerArray(sQueueWait.length);
+    private static final AtomicIntegerArray sMaxQueueDepth = new AtomicIntegerArray(sQueueWait.length);
+    private static final ArrayDeque<Traffic> sConnections = new ArrayDeque<>();
+    private static final ConcurrentHashMap<String, AtomicLong> sNotifications = new ConcurrentHashMap<>();
+    private static final AtomicLong sRefreshes = new AtomicLong();
+    private static final Histogram sStateFetch = new Histogram();
+    private static final Histogram sNotifySilence = new Histogram();
+    private static final Histogram sNotifyRecovery = new Histogram();
+    private static volatile long sSinceNs = System.nanoTime();
+
+    static {
+        for (int i = 0; i < sCommandLatency.length; ++i)
+            sCommandLatency[i] = new Histogram();
+        for (int i = 0; i < sQueueWait.length; ++i)
+            sQueueWait[i] = new Histogram();
+    }
+
+    private Metrics() {}
+
+    // A histogram of durations in microseconds, with buckets growing exponentially
+    // after SUB_BUCKETS, and SUB_BUCKETS / 2 buckets per power of two. This bounds
+    // the relative error to 1/8.
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        private static final int HALF = SUB_BUCKETS / 2;
+        private static final int BUCKETS = (Long.SIZE - 4) * HALF + HALF;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalUs = new AtomicLong();
+        private final AtomicLong mMaxUs = new AtomicLong();
+
+        static int bucketOf(long us) {
+            if (us < SUB_BUCKETS)
+                return (int) Math.max(0, us);
+            int shift = Long.SIZE - Long.numberOfLeadingZeros(us) - 4; // us >> shift is in [8, 16)
+            return shift * HALF + (int) (us >> shift);
+        }
+
+        // The smallest value counted in the bucket.
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int shift = bucket / HALF - 1;
+            return (long) (bucket % HALF + HALF) << shift;
+        }
+
+        void record(long ns) {
+            long us = ns / 1000;
+            mCounts.incrementAndGet(bucketOf(us));
+            mCount.incrementAndGet();
+            mTotalUs.addAndGet(us);
+            long max;
+            while (us > (max = mMaxUs.get()) && !mMaxUs.compareAndSet(max, us))
+                ;
+        }
+
+        long count() { return mCount.get(); }
+        long maxUs() { return mMaxUs.get(); }
+        long meanUs() {
+            long count = mCount.get();
+            return count > 0 ? mTotalUs.get() / count : 0;
+        }
+
+        // Returns the lower bound of the bucket holding quantile q.
+        long quantileUs(double q) {
+            long count = mCount.get();
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(q * count), seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += mCounts.get(i);
+                if (seen >= rank)
+                    return lowerBound(i);
+            }
+            return mMaxUs.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i)
+                mCounts.set(i, 0);
+            mCount.set(0);
+            mTotalUs.set(0);
+            mMaxUs.set(0);
+        }
+    }
+
+    // Bytes transferred over one connection.
+    static final class Traffic {
+        final String label;
+        final AtomicLong read = new AtomicLong(), written = new AtomicLong();
+        volatile boolean closed = false;
+
+        Traffic(String label) {
+            this.label = label;
+        }
+    }
+
+    // Returns the index of the command's verb, for recordCommand().
+    static int verbOf(String command) {
+        for (int i = 0; i < VERBS.length; ++i) {
+            String verb = VERBS[i];
+            if (command.startsWith(verb)
+                    && (command.length() == verb.length() || command.charAt(verb.length()) == ' '))
+                return i;
+        }
+        return OTHER;
+    }
+
+    static void recordCommand(int verb, long ns) {
+        sCommandLatency[verb].record(ns);
+    }
+
+    // A player state fetch through PlayerBackend, all parts together.
+    static void recordStateFetch(long ns) {
+        sStateFetch.record(ns);
+    }
+
+    static void recordQueueWait(MpdRequest.Priority priority, long ns) {
+        sQueueWait[priority.ordinal()].record(ns);
+    }
+
+    static void setQueueDepth(int lane, int depth) {
+        sQueueDepth.set(lane, depth);
+        int max;
+        while (depth > (max = sMaxQueueDepth.get(lane)) && !sMaxQueueDepth.compareAndSet(lane, max, depth))
+            ;
+    }
+
+    static Traffic openConnection(String label) {
+        Traffic traffic = new Traffic(label);
+        synchronized (sConnections) {
+            if (sConnections.size() >= MAX_CONNECTIONS) {
+                Traffic dropped = null;
+                for (Traffic t : sConnections)
+                    if (t.closed) {
+                        dropped = t;
+                        break;
+                    }
+                sConnections.remove(dropped != null ? dropped : sConnections.peekFirst());
+            }
+            sConnections.add(traffic);
+        }
+        return traffic;
+    }
+
+    static void countNotification(String subsystem) {
+        AtomicLong count;
+        while ((count = sNotifications.get(subsystem)) == null)
+            sNotifications.putIfAbsent(subsystem, new AtomicLong());
+        count.incrementAndGet();
+    }
+
+    static void countRefresh() {
+        sRefreshes.incrementAndGet();
+    }
+
+    // Time from the last sign of life of a lost notification connection until the
+    // loss was noticed, an upper bound of the time to detect it.
+    static void recordNotifySilence(long ns) {
+        sNotifySilence.record(ns);
+    }
+
+    // Time from noticing the loss until subscribed again.
+    static void recordNotifyRecovery(long ns) {
+        sNotifyRecovery.record(ns);
+    }
+
+    static void reset() {
+        for (Histogram h : sCommandLatency)
+            h.reset();
+        for (Histogram h : sQueueWait)
+            h.reset();
+        sStateFetch.reset();
+        for (int i = 0; i < sMaxQueueDepth.length(); ++i)
+            sMaxQueueDepth.set(i, sQueueDepth.get(i));
+        synchronized (sConnections) {
+            for (Traffic t : sConnections) {
+                t.read.set(0);
+                t.written.set(0);
+            }
+        }
+        sNotifications.clear();
+        sRefreshes.set(0);
+        sNotifySilence.reset();
+        sNotifyRecovery.reset();
+        sSinceNs = System.nanoTime();
+    }
+
+    // A plain text report of all metrics.
+    static String snapshot() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format(Locale.US, "metrics over %d s\n",
+                (System.nanoTime() - sSinceNs) / 1000000000));
+        s.append("\ncommand latency (ms)\n");
+        appendHeader(s);
+        for (int i = 0; i < sCommandLatency.length; ++i)
+            appendHistogram(s, i < VERBS.length ? VERBS[i] : "other", sCommandLatency[i]);
+        s.append("\nplayer state fetch (ms)\n");
+        appendHeader(s);
+        appendHistogram(s, "all parts", sStateFetch);
+        s.append("\nqueue wait (ms)\n");
+        appendHeader(s);
+        for (MpdRequest.Priority priority : MpdRequest.Priority.values())
+            appendHistogram(s, priority.name(), sQueueWait[priority.ordinal()]);
+        s.append("\nqueue depth (current/max)\n");
+        for (MpdRequest.Priority priority : MpdRequest.Priority.values())
+            s.append(String.format(Locale.US, "%-14s %6d %6d\n", priority.name(),
+                    sQueueDepth.get(priority.ordinal()), sMaxQueueDepth.get(priority.ordinal())));
+        s.append("\nconnections (bytes read/written)\n");
+        ArrayList<Traffic> connections;
+        synchronized (sConnections) {
+            connections = new ArrayList<>(sConnections);
+        }
+        for (Traffic t : connections)
+            s.append(String.format(Locale.US, "%s%s\n  %10d %10d\n", t.label, t.closed ? " (closed)" : "",
+                    t.read.get(), t.written.get()));
+        s.append("\nchange notifications\n");
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<>(sNotifications).entrySet())
+            s.append(String.format(Locale.US, "%-14s %6d\n", e.getKey().isEmpty() ? "(all)" : e.getKey(),
+                    e.getValue().get()));
+        s.append(String.format(Locale.US, "refreshes      %6d\n", sRefreshes.get()));
+        s.append("\nnotification connection outages (ms)\n");
+        appendHeader(s);
+        appendHistogram(s, "silence", sNotifySilence);
+        appendHistogram(s, "recovery", sNotifyRecovery);
+        return s.toString();
+    }
+
+    private static void appendHeader(StringBuilder s) {
+        s.append(String.format(Locale.US, "%-14s %6s %7s %7s %7s %7s\n", "", "count", "p50", "p90", "p99", "max"));
+    }
+
+    private static void appendHistogram(StringBuilder s, String name, Histogram h) {
+        if (h.count() == 0)
+            return;
+        s.append(String.format(Locale.US, "%-14s %6d %7.1f %7.1f %7.1f %7.1f\n", name, h.count(),
+                h.quantileUs(0.5) / 1000.0, h.quantileUs(0.9) / 1000.0,
+                h.quantileUs(0.99) / 1000.0, h.maxUs() / 1000.0));
+    }
+}
@@ -0,0 +1,68 @@
+package org.simulpiscator.our_radio;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+// Shows a snapshot of the Metrics, and shares it as text.
+public class MetricsActivity extends Activity {
+    private static final int MENU_REFRESH = 1, MENU_RESET = 2, MENU_SHARE = 3;
+    private TextView mText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setTitle(R.string.menu_metrics);
+        mText = new TextView(this);
+        mText.setTypeface(Typeface.MONOSPACE);
+        mText.setTextIsSelectable(true);
+        int padding = (int) (8 * getResources().getDisplayMetrics().density);
+        mText.setPadding(padding, padding, padding, padding);
+        ScrollView scroll = new ScrollView(this);
+        scroll.addView(mText);
+        setContentView(scroll);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mText.setText(Metrics.snapshot());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        menu.add(Menu.NONE, MENU_REFRESH, Menu.NONE, R.string.menu_metrics_refresh);
+        menu.add(Menu.NONE, MENU_RESET, Menu.NONE, R.string.menu_metrics_reset);
+        menu.add(Menu.NONE, MENU_SHARE, Menu.NONE, R.string.menu_metrics_share);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case MENU_RESET:
+                Metrics.reset();
+                // fall through
+            case MENU_REFRESH:
+                mText.setText(Metrics.snapshot());
+                break;
+            case MENU_SHARE:
+                String text = Metrics.snapshot();
+                mText.setText(text);
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("text/plain");
+                intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.app_name) + " metrics");
+                intent.putExtra(Intent.EXTRA_TEXT, text);
+                startActivity(Intent.createChooser(intent, getString(R.string.menu_metrics_share)));
+                break;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+        return true;
+    }
+}
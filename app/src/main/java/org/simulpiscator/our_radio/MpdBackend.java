@@ -0,0 +1,193 @@
+package org.simulpiscator.our_radio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The player through the MPD protocol. A state fetch posts its queries together,
+// so MpdThread sends them in a single round trip.
+class MpdBackend implements PlayerBackend {
+    // Shared by the requests that start playing a playlist, and by stop, so that
+    // stop cancels what has not been sent of them.
+    private static final String PLAY_KEY = "play";
+    private static final String APPEND_KEY = "append";
+    private final MpdThread mThread;
+    private final boolean mFastStart;
+    private final AtomicInteger mPlayGeneration = new AtomicInteger();
+    private volatile MpdRequest mPlay; // of the latest play sequence
+
+    // With fastStart, playing starts after loading the first entry of a playlist.
+    MpdBackend(MpdThread thread, boolean fastStart) {
+        mThread = thread;
+        mFastStart = fastStart;
+    }
+
+    @Override
+    public void fetchState(int queries, StateListener listener) {
+        new StateFetch(queries, listener).post();
+    }
+
+    private class StateFetch extends MpdRequest.OnDoneListener {
+        private final MpdRequest mStatus, mCurrentSong, mOutputs;
+        private final StateListener mListener;
+        private final long mStartNs = System.nanoTime();
+        private int mPending = 0;
+
+        StateFetch(int queries, StateListener listener) {
+            mListener = listener;
+            mStatus = newRequest(queries, STATUS, "status");
+            mCurrentSong = newRequest(queries, CURRENT_SONG, "currentsong");
+            mOutputs = newRequest(queries, OUTPUTS, "outputs");
+        }
+
+        private MpdRequest newRequest(int queries, int query, String command) {
+            if ((queries & query) == 0)
+                return null;
+            ++mPending;
+            return new MpdRequest(command, this);
+        }
+
+        void post() {
+            List<MpdRequest> requests = new ArrayList<>();
+            for (MpdRequest r : new MpdRequest[]{mStatus, mCurrentSong, mOutputs})
+                if (r != null)
+                    requests.add(r);
+            mThread.post(requests.toArray(new MpdRequest[0]));
+        }
+
+        @Override
+        void onMpdRequestDone(MpdRequest request) {
+            synchronized (this) {
+                if (--mPending > 0)
+                    return;
+            }
+            Metrics.recordStateFetch(System.nanoTime() - mStartNs);
+            mListener.onState(toSnapshot());
+        }
+
+        private Snapshot toSnapshot() {
+            Snapshot snapshot = new Snapshot();
+            if (mStatus != null && mStatus.getError() == null) {
+                MpdResult.StatusView status = new MpdResult.StatusView(mStatus.getResult());
+                if (!status.isValid())
+                    snapshot.error = "non-empty result expected";
+                if (status.volume() >= 0)
+                    snapshot.volume = status.volume();
+                if (!status.state().isEmpty())
+                    snapshot.playing = status.isPlaying();
+            }
+            if (mCurrentSong != null) {
+                snapshot.song = new Song();
+                if (mCurrentSong.getError() == null) {
+                    MpdResult.SongView info = new MpdResult.SongView(mCurrentSong.getResult());
+                    snapshot.song.uri = info.file();
+                    snapshot.song.title = info.title();
+                    snapshot.song.album = info.album();
+                    snapshot.song.artist = info.artist();
+                }
+            }
+            if (mOutputs != null && mOutputs.getError() == null) {
+                snapshot.outputs = new ArrayList<>();
+                MpdResult.OutputView entry = new MpdResult.OutputView(mOutputs.getResult());
+                while (entry.next()) {
+                    Output output = new Output();
+                    output.id = entry.id();
+                    output.name = entry.name();
+                    output.enabled = entry.enabled() != 0;
+                    snapshot.outputs.add(output);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    @Override
+    public void play(String playlist, final DoneListener listener) {
+        int generation = mPlayGeneration.incrementAndGet();
+        // all bulk, because they must execute in order, and load may take long
+        mThread.post(
+                bulkRequest("clear", PLAY_KEY, null),
+                bulkRequest("load " + MpdRequest.quote(playlist) + (mFastStart ? " 0:1" : ""), PLAY_KEY, null),
+                mPlay = bulkRequest("play", PLAY_KEY, new MpdRequest.OnDoneListener() {
+                    @Override
+                    void onMpdRequestDone(MpdRequest request) {
+                        listener.onDone(request.getError());
+                    }
+                }));
+        if (mFastStart)
+            new PlaylistAppender(playlist, generation).appendChunk(1, 1);
+    }
+
+    private static MpdRequest bulkRequest(String command, String key, MpdRequest.OnDoneListener listener) {
+        return new MpdRequest(command, listener)
+                .setSupersedeKey(key)
+                .setPriority(MpdRequest.Priority.bulk);
+    }
+
+    // Appends the rest of a playlist in chunks, after its first entry has started
+    // playing. Each chunk is followed by a status query, and appending ends when
+    // a chunk adds fewer entries than requested, or when another playlist is played.
+    private class PlaylistAppender extends MpdRequest.OnDoneListener {
+        private static final int CHUNK_SIZE = 64;
+        private final String mPlaylist;
+        private final int mGeneration;
+        private int mStart, mLength;
+
+        PlaylistAppender(String playlist, int generation) {
+            mPlaylist = playlist;
+            mGeneration = generation;
+        }
+
+        // Loads entries from start on, while the queue holds length entries.
+        void appendChunk(int start, int length) {
+            mStart = start;
+            mLength = length;
+            mThread.post(
+                    bulkRequest("load " + MpdRequest.quote(mPlaylist) + " " + start + ":" + (start + CHUNK_SIZE),
+                            APPEND_KEY, null),
+                    bulkRequest("status", APPEND_KEY, this));
+        }
+
+        @Override
+        void onMpdRequestDone(MpdRequest request) {
+            if (request.getError() != null || mPlayGeneration.get() != mGeneration)
+                return;
+            int length = new MpdResult.StatusView(request.getResult()).playlistLength();
+            if (length - mLength == CHUNK_SIZE)
+                appendChunk(mStart + CHUNK_SIZE, length);
+        }
+    }
+
+    // Stop drops what is still queued of playing, and waits for the play command
+    // only if that is in flight, but not for other bulk requests. Appending ends
+    // with the current chunk.
+    @Override
+    public void stop(final DoneListener listener) {
+        mPlayGeneration.incrementAndGet();
+        mThread.post(new MpdRequest("stop", new MpdRequest.OnDoneListener() {
+            @Override
+            void onMpdRequestDone(MpdRequest request) {
+                listener.onDone(request.getError());
+            }
+        }).setSupersedeKey(PLAY_KEY).setAfter(mPlay).setPriority(MpdRequest.Priority.interactive));
+    }
+
+    @Override
+    public void setVolume(int percent) {
+        mThread.post(new MpdRequest("setvol " + percent)
+                .setSupersedeKey("setvol")
+                .setPriority(MpdRequest.Priority.interactive));
+    }
+
+    @Override
+    public void setOutput(String id, boolean enabled) {
+        mThread.post(new MpdRequest((enabled ? "enableoutput " : "disableoutput ") + id)
+                .setSupersedeKey("output " + id)
+                .setPriority(MpdRequest.Priority.interactive));
+    }
+
+    // The MpdThread belongs to the session, and is left running.
+    @Override
+    public void close() {
+    }
+}
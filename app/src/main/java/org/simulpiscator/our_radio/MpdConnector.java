@@ -0,0 +1,206 @@
+package org.simulpiscator.our_radio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+
+// Opens MPD connections. Resolved addresses are cached per server for ADDRESS_TTL_MS,
+// and all addresses of a server are tried in a race: a new attempt starts every
+// ATTEMPT_DELAY_MS, or as soon as one fails, and the first connection to greet with
+// "OK MPD" wins. The winning address is tried first next time.
+class MpdConnector {
+    private static final String TAG = "sp:connector";
+    static final long ADDRESS_TTL_MS = 5 * 60 * 1000;
+    static final int ATTEMPT_DELAY_MS = 250;
+    private static final byte[] GREETING = "OK MPD".getBytes(SocketConnection.Latin1);
+    private static final int MAX_GREETING_LENGTH = 256;
+
+    private static class Addresses {
+        InetAddress[] all;
+        long resolvedMs;
+        InetAddress winner;
+    }
+    private static final HashMap<String, Addresses> sCache = new HashMap<>();
+
+    // A connection attempt to one address.
+    private static class Attempt {
+        final InetAddress address;
+        final SocketChannel channel;
+        final ByteBuffer greeting = ByteBuffer.allocate(MAX_GREETING_LENGTH);
+
+        Attempt(InetAddress address, SocketChannel channel) {
+            this.address = address;
+            this.channel = channel;
+        }
+    }
+
+    // Returns a connection whose greeting has been read.
+    static SocketConnection connect(String host, int port, int timeoutMs)
+            throws IOException, MpdRequest.ProtocolErrorException {
+        List<InetAddress> candidates = getCandidates(host);
+        long deadline = now() + timeoutMs;
+        long nextStart = 0;
+        int next = 0;
+        Exception lastError = null;
+        ArrayList<Attempt> attempts = new ArrayList<>();
+        Attempt winner = null;
+        Selector selector = Selector.open();
+        try {
+            while (winner == null) {
+                long now = now();
+                if (next < candidates.size() && (now >= nextStart || selector.keys().isEmpty())) {
+                    InetAddress address = candidates.get(next++);
+                    nextStart = now + ATTEMPT_DELAY_MS;
+                    SocketChannel channel = SocketChannel.open();
+                    Attempt attempt = new Attempt(address, channel);
+                    attempts.add(attempt);
+                    try {
+                        channel.configureBlocking(false);
+                        boolean connected = channel.connect(new InetSocketAddress(address, port));
+                        channel.register(selector, connected ? OP_READ : OP_CONNECT, attempt);
+                    } catch (IOException e) {
+                        lastError = e;
+                        channel.close();
+                    }
+                    continue;
+                }
+                if (selector.keys().isEmpty()) {
+                    invalidate(host);
+                    if (lastError instanceof IOException)
+                        throw (IOException) lastError;
+                    if (lastError != null)
+                        throw (MpdRequest.ProtocolErrorException) lastError;
+                    throw new ConnectException("no address for " + host);
+                }
+                if (now >= deadline)
+                    throw new SocketTimeoutException("MPD connection timeout");
+                long waitUntil = next < candidates.size() ? Math.min(nextStart, deadline) : deadline;
+                selector.selectedKeys().clear();
+                selector.select(Math.max(1, waitUntil - now));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Attempt attempt = (Attempt) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            attempt.channel.finishConnect();
+                            key.interestOps(OP_READ);
+                        } else if (key.isReadable() && readGreeting(attempt)) {
+                            winner = attempt;
+                            break;
+                        }
+                    } catch (Exception e) {
+                        lastError = e;
+                        key.cancel();
+                        attempt.channel.close();
+                        nextStart = 0; // start the next attempt right away
+                    }
+                }
+                selector.selectNow(); // deregisters cancelled keys
+            }
+        } finally {
+            selector.close();
+            for (Attempt attempt : attempts)
+                if (attempt != winner)
+                    attempt.channel.close();
+        }
+        setWinner(host, winner.address);
+        return new SocketConnection(winner.channel);
+    }
+
+    // Returns true once a complete greeting has been read, and throws if it is not MPD's.
+    private static boolean readGreeting(Attempt attempt) throws IOException, MpdRequest.ProtocolErrorException {
+        ByteBuffer buf = attempt.greeting;
+        if (attempt.channel.read(buf) < 0)
+            throw new ConnectException("connection closed by " + attempt.address);
+        for (int i = 0; i < buf.position(); ++i) {
+            if (buf.get(i) == '\n') {
+                if (!MpdParser.startsWith(buf.array(), 0, i, GREETING))
+                    throw new MpdRequest.ProtocolErrorException("unexpected server response");
+                return true;
+            }
+        }
+        if (!buf.hasRemaining())
+            throw new MpdRequest.ProtocolErrorException("unexpected server response");
+        return false;
+    }
+
+    // Returns the server's addresses, with the last winner first, and
+    // alternating between address families otherwise.
+    private static List<InetAddress> getCandidates(String host) throws IOException {
+        Addresses cached;
+        synchronized (sCache) {
+            cached = sCache.get(host);
+        }
+        if (cached == null || now() - cached.resolvedMs > ADDRESS_TTL_MS) {
+            try {
+                Addresses resolved = new Addresses();
+                resolved.all = InetAddress.getAllByName(host);
+                resolved.resolvedMs = now();
+                if (cached != null)
+                    resolved.winner = cached.winner;
+                synchronized (sCache) {
+                    sCache.put(host, resolved);
+                }
+                cached = resolved;
+            } catch (IOException e) {
+                if (cached == null)
+                    throw e;
+                Log.w(TAG, "using stale addresses for " + host + ": " + e.getMessage());
+            }
+        }
+        ArrayList<InetAddress> first = new ArrayList<>(), second = new ArrayList<>();
+        boolean firstIs6 = cached.all[0] instanceof Inet6Address;
+        for (InetAddress address : cached.all) {
+            if (address.equals(cached.winner))
+                continue;
+            if ((address instanceof Inet6Address) == firstIs6)
+                first.add(address);
+            else
+                second.add(address);
+        }
+        ArrayList<InetAddress> candidates = new ArrayList<>();
+        for (InetAddress address : cached.all)
+            if (address.equals(cached.winner))
+                candidates.add(address);
+        for (int i = 0; i < first.size() || i < second.size(); ++i) {
+            if (i < first.size())
+                candidates.add(first.get(i));
+            if (i < second.size())
+                candidates.add(second.get(i));
+        }
+        return candidates;
+    }
+
+    private static void setWinner(String host, InetAddress winner) {
+        synchronized (sCache) {
+            Addresses cached = sCache.get(host);
+            if (cached != null)
+                cached.winner = winner;
+        }
+    }
+
+    // Forgets addresses that all failed, so the next attempt resolves them again.
+    private static void invalidate(String host) {
+        synchronized (sCache) {
+            sCache.remove(host);
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,163 @@
+package org.simulpiscator.our_radio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.Arrays;
+
+import static org.simulpiscator.our_radio.SocketConnection.Latin1;
+import static org.simulpiscator.our_radio.SocketConnection.UTF8;
+
+// Parses MPD response lines in place, as found in a SocketConnection's buffer.
+// Keys are matched against a fixed table of known keys, and identified by
+// their index, so parsing a line allocates nothing but its value string.
+class MpdParser {
+
+    static final byte[] OK = bytes("OK");
+    static final byte[] LIST_OK = bytes("list_OK");
+    static final byte[] ACK = bytes("ACK ");
+
+    // Key ids are indices into KEY_NAMES. Fields with other keys are ignored.
+    static final int UNKNOWN_KEY = -1;
+    static final int MAX_KEYS = 64; // a record's keys must fit into a long bit mask
+    static final String[] KEY_NAMES = new String[MAX_KEYS];
+    private static int sKeyCount = 0;
+
+    private static final int TABLE_SIZE = 256; // power of two, well above MAX_KEYS
+    private static final int[] sTable = emptyTable();
+    private static final byte[][] sTableBytes = new byte[TABLE_SIZE][];
+
+    static final int KEY_FILE = knownKey("file:");
+    static final int KEY_DIRECTORY = knownKey("directory:");
+    static final int KEY_PLAYLIST = knownKey("playlist:");
+    static final int KEY_LAST_MODIFIED = knownKey("last-modified:");
+    static final int KEY_TITLE = knownKey("title:");
+    static final int KEY_ALBUM = knownKey("album:");
+    static final int KEY_ARTIST = knownKey("artist:");
+    static final int KEY_ALBUMARTIST = knownKey("albumartist:");
+    static final int KEY_NAME = knownKey("name:");
+    static final int KEY_GENRE = knownKey("genre:");
+    static final int KEY_DATE = knownKey("date:");
+    static final int KEY_TRACK = knownKey("track:");
+    static final int KEY_POS = knownKey("pos:");
+    static final int KEY_ID = knownKey("id:");
+    static final int KEY_TIME = knownKey("time:");
+    static final int KEY_DURATION = knownKey("duration:");
+    static final int KEY_FORMAT = knownKey("format:");
+    static final int KEY_VOLUME = knownKey("volume:");
+    static final int KEY_REPEAT = knownKey("repeat:");
+    static final int KEY_RANDOM = knownKey("random:");
+    static final int KEY_SINGLE = knownKey("single:");
+    static final int KEY_CONSUME = knownKey("consume:");
+    static final int KEY_PLAYLISTLENGTH = knownKey("playlistlength:");
+    static final int KEY_MIXRAMPDB = knownKey("mixrampdb:");
+    static final int KEY_STATE = knownKey("state:");
+    static final int KEY_SONG = knownKey("song:");
+    static final int KEY_SONGID = knownKey("songid:");
+    static final int KEY_NEXTSONG = knownKey("nextsong:");
+    static final int KEY_NEXTSONGID = knownKey("nextsongid:");
+    static final int KEY_ELAPSED = knownKey("elapsed:");
+    static final int KEY_BITRATE = knownKey("bitrate:");
+    static final int KEY_AUDIO = knownKey("audio:");
+    static final int KEY_XFADE = knownKey("xfade:");
+    static final int KEY_UPDATING_DB = knownKey("updating_db:");
+    static final int KEY_ERROR = knownKey("error:");
+    static final int KEY_OUTPUTID = knownKey("outputid:");
+    static final int KEY_OUTPUTNAME = knownKey("outputname:");
+    static final int KEY_PLUGIN = knownKey("plugin:");
+    static final int KEY_OUTPUTENABLED = knownKey("outputenabled:");
+    static final int KEY_ATTRIBUTE = knownKey("attribute:");
+    static final int KEY_CHANGED = knownKey("changed:");
+    static final int KEY_SIZE = knownKey("size:");
+    static final int KEY_BINARY = knownKey("binary:");
+    static final int KEY_TYPE = knownKey("type:");
+
+    private static int[] emptyTable() {
+        int[] table = new int[TABLE_SIZE];
+        Arrays.fill(table, UNKNOWN_KEY);
+        return table;
+    }
+
+    private static int knownKey(String key) {
+        int id = sKeyCount++;
+        KEY_NAMES[id] = key;
+        byte[] b = bytes(key);
+        int i = hash(b, 0, b.length);
+        while (sTable[i] != UNKNOWN_KEY)
+            i = (i + 1) & (TABLE_SIZE - 1);
+        sTable[i] = id;
+        sTableBytes[i] = b;
+        return id;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Latin1);
+    }
+
+    private static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static int hash(byte[] buf, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i)
+            h = 31 * h + toLower(buf[i]);
+        return (h ^ (h >>> 8)) & (TABLE_SIZE - 1);
+    }
+
+    static boolean isLine(byte[] buf, int start, int end, byte[] literal) {
+        return end - start == literal.length && startsWith(buf, start, end, literal);
+    }
+
+    static boolean startsWith(byte[] buf, int start, int end, byte[] literal) {
+        if (end - start < literal.length)
+            return false;
+        for (int i = 0; i < literal.length; ++i)
+            if (buf[start + i] != literal[i])
+                return false;
+        return true;
+    }
+
+    // Returns the end of the key, including its colon, or the end of the line
+    // if it contains no ": " separator.
+    static int keyEnd(byte[] buf, int start, int end) {
+        for (int i = start; i < end; ++i)
+            if (buf[i] == ':' && (i + 1 == end || buf[i + 1] == ' '))
+                return i + 1;
+        return end;
+    }
+
+    // Returns the id of a known key, or UNKNOWN_KEY.
+    static int key(byte[] buf, int start, int end) {
+        int i = hash(buf, start, end);
+        while (sTable[i] != UNKNOWN_KEY) {
+            byte[] b = sTableBytes[i];
+            if (b.length == end - start) {
+                int j = 0;
+                while (j < b.length && toLower(buf[start + j]) == b[j])
+                    ++j;
+                if (j == b.length)
+                    return sTable[i];
+            }
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        return UNKNOWN_KEY;
+    }
+
+    // MPD sends UTF-8, so values are decoded as such in a single pass. Only a
+    // value that decodes to replacement characters is checked strictly, and if it
+    // is not UTF-8 after all, it is decoded as Latin-1, as sent by old servers.
+    static String value(byte[] buf, int start, int end) {
+        while (start < end && buf[start] == ' ')
+            ++start;
+        if (start == end)
+            return "";
+        String value = new String(buf, start, end - start, UTF8);
+        if (value.indexOf('\uFFFD') < 0)
+            return value;
+        try {
+            return UTF8.newDecoder().decode(ByteBuffer.wrap(buf, start, end - start)).toString();
+        } catch (CharacterCodingException e) {
+            return new String(buf, start, end - start, Latin1);
+        }
+    }
+}
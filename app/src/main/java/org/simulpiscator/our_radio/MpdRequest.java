@@ -4,11 +4,11 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 
-import static org.simulpiscator.our_radio.SocketConnection.UTF8;
 import static org.simulpiscator.our_radio.SocketConnection.Latin1;
 
 class MpdRequest {
@@ -18,13 +18,34 @@ class MpdRequest {
         abstract void onMpdRequestDone(MpdRequest request);
     }
 
-    static class Result extends ArrayList<HashMap<String, String>> {
-    }
+    // Scheduling priority in MpdThread, highest first: user controls, then
+    // state queries, then bulk transfers such as playlist listings or loads.
+    enum Priority { interactive, state, bulk }
 
     private final String mCommand;
     private final OnDoneListener mListener;
     private volatile String mError;
-    private Result mResult;
+    private MpdResult mResult;
+    private String mSupersedeKey;
+    private boolean mShared = false;
+    private ArrayList<OnDoneListener> mSharedListeners;
+    private boolean mDone = false;
+    private Priority mPriority = Priority.state;
+    private long mPostedNs;
+    private long mSentNs;
+    private final int mVerb;
+    private Boolean mIdempotent;
+    private boolean mStandalone = false;
+    private MpdRequest mAfter;
+    private byte[] mBinary;
+    private int mBinaryOffset, mBinaryLength;
+
+    // Commands that may be sent again after a connection was lost while their
+    // response was pending, because repeating them does no harm.
+    private static final HashSet<String> IDEMPOTENT_VERBS = new HashSet<>(Arrays.asList(
+            "ping", "status", "currentsong", "outputs", "listplaylists", "lsinfo",
+            "setvol", "crossfade", "random", "repeat", "enableoutput", "disableoutput", "stop",
+            "albumart", "readpicture", "binarylimit"));
 
     MpdRequest(String command) {
         this(command, null);
@@ -33,61 +54,224 @@ class MpdRequest {
     MpdRequest(String command, OnDoneListener listener) {
         mCommand = command;
         mListener = listener;
+        mVerb = Metrics.verbOf(command);
+    }
+
+    // Quotes a command argument, escaping quotes and backslashes.
+    static String quote(String argument) {
+        return "\"" + argument.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
     }
 
     String getCommand() { return mCommand; }
     String getError() { return mError; }
-    Result getResult() { return mResult; }
+    MpdResult getResult() { return mResult; }
+
+    // A queued request is replaced by a newer one with the same supersede key,
+    // as long as it has not been sent. Used for commands where only the
+    // latest one matters, such as setvol, and for sequences of commands that a
+    // later command cancels.
+    MpdRequest setSupersedeKey(String key) {
+        mSupersedeKey = key;
+        return this;
+    }
+    String getSupersedeKey() { return mSupersedeKey; }
+
+    MpdRequest setPriority(Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+    Priority getPriority() { return mPriority; }
+
+    // Sends the request on its own, rather than in a command list with others,
+    // for commands that may well fail: in a command list, an ACK would fail the
+    // commands after it as well. Pipelined requests are always sent on their own.
+    MpdRequest setStandalone(boolean standalone) {
+        mStandalone = standalone;
+        return this;
+    }
+    boolean isStandalone() { return mStandalone; }
+
+    // Holds the request back while other is in flight, so it cannot overtake it
+    // on another connection. Unlike a lower priority, this does not make it wait
+    // for anything queued.
+    MpdRequest setAfter(MpdRequest other) {
+        mAfter = other;
+        return this;
+    }
+    MpdRequest getAfter() { return mAfter; }
+
+    // Overrides the default, which depends on the command verb.
+    MpdRequest setIdempotent(boolean idempotent) {
+        mIdempotent = idempotent;
+        return this;
+    }
+    boolean isIdempotent() {
+        if (mIdempotent != null)
+            return mIdempotent;
+        int end = mCommand.indexOf(' ');
+        return mShared || IDEMPOTENT_VERBS.contains(end < 0 ? mCommand : mCommand.substring(0, end));
+    }
+
+    // Binary data in the response, as sent for albumart or readpicture, is read
+    // into buffer at offset. Without a buffer, it is skipped. Data that does not
+    // fit is skipped as well, and fails the request.
+    MpdRequest setBinaryBuffer(byte[] buffer, int offset) {
+        mBinary = buffer;
+        mBinaryOffset = offset;
+        return this;
+    }
+    int getBinaryLength() { return mBinaryLength; }
+
+    synchronized boolean isDone() { return mDone; }
+
+    // Completes the request without a response.
+    void fail(String error) {
+        mResult = new MpdResult();
+        mError = error;
+        notifyDone();
+    }
+
+    void setPostedNs(long ns) { mPostedNs = ns; }
+    long getPostedNs() { return mPostedNs; }
+
+    // Shared requests are read-only: a shared request with the same command
+    // that is queued or in flight is executed once for both, and its result
+    // is passed to both listeners.
+    MpdRequest setShared(boolean shared) {
+        mShared = shared;
+        return this;
+    }
+    boolean isShared() { return mShared; }
+
+    // Adds the other request's listeners to this request, unless this request
+    // is already done. Listeners receive this request, not the one they were
+    // registered with.
+    synchronized boolean adoptListeners(MpdRequest other) {
+        if (mDone)
+            return false;
+        if (mSharedListeners == null)
+            mSharedListeners = new ArrayList<>();
+        if (other.mListener != null)
+            mSharedListeners.add(other.mListener);
+        if (other.mSharedListeners != null)
+            mSharedListeners.addAll(other.mSharedListeners);
+        return true;
+    }
 
     boolean process(SocketConnection connection, int timeoutMs) throws IOException {
-        mResult = new MpdRequest.Result();
         synchronized (connection) {
-            connection.writeLine(mCommand, Latin1);
-            boolean done = false;
-            while (!done) {
+            send(connection);
+            receive(connection, timeoutMs);
+        }
+        notifyDone();
+        return mError == null;
+    }
+
+    // Writes the command without waiting for the response. Used for pipelining,
+    // where the caller must read responses in the order commands were sent.
+    void send(SocketConnection connection) throws IOException {
+        mSentNs = System.nanoTime();
+        connection.writeLine(mCommand, Latin1);
+    }
+
+    boolean receive(SocketConnection connection, int timeoutMs) throws IOException {
+        return receive(connection, timeoutMs, MpdParser.OK);
+    }
+
+    // Sends all requests as a single command list, and distributes the responses
+    // to the individual requests. If a command fails, the server skips the remaining
+    // commands, so these are failed with the same error.
+    static void processList(List<MpdRequest> requests, SocketConnection connection, int timeoutMs) throws IOException {
+        if (requests.size() == 1) {
+            requests.get(0).process(connection, timeoutMs);
+            return;
+        }
+        StringBuilder commands = new StringBuilder("command_list_ok_begin\n");
+        for (MpdRequest r : requests)
+            commands.append(r.mCommand).append('\n');
+        commands.append("command_list_end");
+        synchronized (connection) {
+            long sentNs = System.nanoTime();
+            for (MpdRequest r : requests)
+                r.mSentNs = sentNs;
+            connection.writeLine(commands.toString(), Latin1);
+            String error = null;
+            for (MpdRequest r : requests) {
+                if (error == null) {
+                    if (!r.receive(connection, timeoutMs, MpdParser.LIST_OK))
+                        error = r.mError;
+                } else {
+                    r.mResult = new MpdResult();
+                    r.mError = error;
+                }
+            }
+            if (error == null) {
                 if (!connection.waitForRead(timeoutMs))
                     throw new SocketTimeoutException();
-                String line = connection.readLine(Latin1);
-                if ("OK".equals(line)) {
-                    done = true;
-                } else if (line.startsWith("ACK ")) {
-                    mError = line;
-                    done = true;
-                } else {
-                    String[] fields = line.split("\\s+", 2);
-                    if (fields.length > 0) {
-                        String key = fields[0].toLowerCase();
-                        if (mResult.isEmpty() || mResult.get(mResult.size() - 1).containsKey(key))
-                            mResult.add(new HashMap<String, String>());
-                        String value = "";
-                        if (fields.length > 1)
-                            value = fields[1];
-                        byte[] bytes = value.getBytes(Latin1);
-                        value = new String(bytes, detectCharset(bytes));
-                        mResult.get(mResult.size() - 1).put(key, value);
-                    }
+                connection.readLineInPlace(timeoutMs);
+                if (!MpdParser.isLine(connection.getLineBuffer(), connection.getLineStart(), connection.getLineEnd(), MpdParser.OK))
+                    Log.w(TAG, "unexpected end of command list");
+            }
+        }
+        for (MpdRequest r : requests)
+            r.notifyDone();
+    }
+
+    // Reads response lines up to the given terminator, or an ACK line.
+    // Returns false if the server responded with an error.
+    private boolean receive(SocketConnection connection, int timeoutMs, byte[] terminator) throws IOException {
+        mResult = new MpdResult();
+        mError = null;
+        mBinaryLength = 0;
+        boolean done = false;
+        while (!done) {
+            if (!connection.waitForRead(timeoutMs))
+                throw new SocketTimeoutException();
+            connection.readLineInPlace(timeoutMs);
+            byte[] buf = connection.getLineBuffer();
+            int start = connection.getLineStart(), end = connection.getLineEnd();
+            if (MpdParser.isLine(buf, start, end, terminator)) {
+                done = true;
+            } else if (MpdParser.startsWith(buf, start, end, MpdParser.ACK)) {
+                mError = new String(buf, start, end - start, Latin1);
+                done = true;
+            } else if (end > start) {
+                int keyEnd = MpdParser.keyEnd(buf, start, end);
+                int key = MpdParser.key(buf, start, keyEnd);
+                if (key != MpdParser.UNKNOWN_KEY) {
+                    String value = MpdParser.value(buf, keyEnd, end);
+                    mResult.add(key, value);
+                    if (key == MpdParser.KEY_BINARY)
+                        receiveBinary(connection, MpdResult.parseInt(value, -1), timeoutMs);
                 }
             }
         }
-        if(mListener != null)
-            mListener.onMpdRequestDone(this);
+        Metrics.recordCommand(mVerb, System.nanoTime() - mSentNs);
         return mError == null;
     }
 
-    Charset detectCharset(byte[] bytes) {
-        boolean maybeUTF8 = true;
-        boolean lastByteIsMark = false;
-        for (byte b: bytes) {
-            if(b == (byte)0xc2 || b == (byte)0xc3)
-                lastByteIsMark = true;
-            else if(b < 0 && !lastByteIsMark)
-                maybeUTF8 = false;
-            else if(b > 0 && lastByteIsMark)
-                lastByteIsMark = false;
+    // The data follows its length line, and is terminated by an empty line,
+    // which receive() skips.
+    private void receiveBinary(SocketConnection connection, int length, int timeoutMs) throws IOException {
+        if (length < 0)
+            throw new IOException("invalid binary length");
+        int fits = mBinary == null ? 0 : Math.min(length, mBinary.length - mBinaryOffset);
+        connection.readBinary(mBinary, mBinaryOffset, fits, timeoutMs);
+        connection.readBinary(null, 0, length - fits, timeoutMs);
+        mBinaryLength = fits;
+        if (mBinary != null && fits < length)
+            mError = "binary data exceeds buffer";
+    }
+
+    void notifyDone() {
+        synchronized (this) {
+            mDone = true;
         }
-        if(maybeUTF8)
-            return UTF8;
-        return Latin1;
+        if(mListener != null)
+            mListener.onMpdRequestDone(this);
+        if(mSharedListeners != null)
+            for(OnDoneListener listener : mSharedListeners)
+                listener.onMpdRequestDone(this);
     }
 
     static class ProtocolErrorException extends Exception {
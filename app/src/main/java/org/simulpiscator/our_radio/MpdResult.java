@@ -0,0 +1,148 @@
+package org.simulpiscator.our_radio;
+
+import java.util.Arrays;
+
+import static org.simulpiscator.our_radio.MpdParser.KEY_ALBUM;
+import static org.simulpiscator.our_radio.MpdParser.KEY_ARTIST;
+import static org.simulpiscator.our_radio.MpdParser.KEY_FILE;
+import static org.simulpiscator.our_radio.MpdParser.KEY_LAST_MODIFIED;
+import static org.simulpiscator.our_radio.MpdParser.KEY_NAME;
+import static org.simulpiscator.our_radio.MpdParser.KEY_OUTPUTENABLED;
+import static org.simulpiscator.our_radio.MpdParser.KEY_OUTPUTID;
+import static org.simulpiscator.our_radio.MpdParser.KEY_OUTPUTNAME;
+import static org.simulpiscator.our_radio.MpdParser.KEY_PLAYLIST;
+import static org.simulpiscator.our_radio.MpdParser.KEY_PLAYLISTLENGTH;
+import static org.simulpiscator.our_radio.MpdParser.KEY_STATE;
+import static org.simulpiscator.our_radio.MpdParser.KEY_TITLE;
+import static org.simulpiscator.our_radio.MpdParser.KEY_VOLUME;
+
+// Response records, stored in flat column arrays: field i has key id mKeys[i]
+// and value mValues[i], and record r consists of the fields from mRecordStarts[r]
+// up to the start of the next record. A new record begins whenever a key repeats.
+class MpdResult {
+    private int[] mKeys = new int[8];
+    private String[] mValues = new String[8];
+    private int mFieldCount = 0;
+    private int[] mRecordStarts = new int[2];
+    private int mRecordCount = 0;
+    private long mRecordKeys = 0; // bit mask of keys present in the last record
+
+    void add(int key, String value) {
+        long bit = 1L << key;
+        if (mRecordCount == 0 || (mRecordKeys & bit) != 0) {
+            if (mRecordCount == mRecordStarts.length)
+                mRecordStarts = Arrays.copyOf(mRecordStarts, 2 * mRecordCount + 2);
+            mRecordStarts[mRecordCount++] = mFieldCount;
+            mRecordKeys = 0;
+        }
+        mRecordKeys |= bit;
+        if (mFieldCount == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, 2 * mFieldCount + 8);
+            mValues = Arrays.copyOf(mValues, 2 * mFieldCount + 8);
+        }
+        mKeys[mFieldCount] = key;
+        mValues[mFieldCount] = value;
+        ++mFieldCount;
+    }
+
+    // Releases unused capacity, for results that are kept around.
+    void trimToSize() {
+        mKeys = Arrays.copyOf(mKeys, mFieldCount);
+        mValues = Arrays.copyOf(mValues, mFieldCount);
+        mRecordStarts = Arrays.copyOf(mRecordStarts, mRecordCount);
+    }
+
+    int size() { return mRecordCount; }
+    boolean isEmpty() { return mRecordCount == 0; }
+
+    String get(int record, int key) {
+        int end = record + 1 < mRecordCount ? mRecordStarts[record + 1] : mFieldCount;
+        for (int i = mRecordStarts[record]; i < end; ++i)
+            if (mKeys[i] == key)
+                return mValues[i];
+        return null;
+    }
+
+    int getInt(int record, int key, int fallback) {
+        return parseInt(get(record, key), fallback);
+    }
+
+    // Parses a decimal integer without the overhead of Integer.decode().
+    static int parseInt(String s, int fallback) {
+        if (s == null || s.isEmpty())
+            return fallback;
+        int i = 0, sign = 1, value = 0;
+        if (s.charAt(0) == '-') {
+            sign = -1;
+            ++i;
+        }
+        if (i == s.length())
+            return fallback;
+        for (; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return fallback;
+            value = 10 * value + (c - '0');
+        }
+        return sign * value;
+    }
+
+    // Views give typed access to records without copying them. Views over a single
+    // record are positioned on it, others are cursors that start before the first
+    // record and are advanced with next().
+    static class RecordView {
+        final MpdResult mResult;
+        int mRecord;
+
+        RecordView(MpdResult result, int record) {
+            mResult = result;
+            mRecord = record;
+        }
+        boolean isValid() { return mRecord >= 0 && mRecord < mResult.size(); }
+        boolean next() { return ++mRecord < mResult.size(); }
+        String get(int key) { return isValid() ? mResult.get(mRecord, key) : null; }
+        String getString(int key) {
+            String s = get(key);
+            return s == null ? "" : s;
+        }
+        int getInt(int key, int fallback) { return parseInt(get(key), fallback); }
+    }
+
+    static class StatusView extends RecordView {
+        StatusView(MpdResult result) { super(result, 0); }
+        int volume() { return getInt(KEY_VOLUME, -1); }
+        String state() { return getString(KEY_STATE); }
+        boolean isPlaying() { return "play".equals(get(KEY_STATE)); }
+        int playlistLength() { return getInt(KEY_PLAYLISTLENGTH, 0); }
+    }
+
+    static class SongView extends RecordView {
+        SongView(MpdResult result) { super(result, 0); }
+        String file() { return getString(KEY_FILE); }
+        String title() { return getString(KEY_TITLE); }
+        String album() { return getString(KEY_ALBUM); }
+        String artist() { return getString(KEY_ARTIST); }
+        String name() { return getString(KEY_NAME); }
+    }
+
+    static class OutputView extends RecordView {
+        OutputView(MpdResult result) { super(result, -1); }
+        String id() { return getString(KEY_OUTPUTID); }
+        String name() { return getString(KEY_OUTPUTNAME); }
+        int enabled() { return getInt(KEY_OUTPUTENABLED, 0); }
+    }
+
+    // Skips records that are not playlist entries.
+    static class PlaylistEntryView extends RecordView {
+        PlaylistEntryView(MpdResult result) { super(result, -1); }
+        @Override
+        boolean next() {
+            while (super.next())
+                if (get(KEY_PLAYLIST) != null)
+                    return true;
+            return false;
+        }
+        String name() { return get(KEY_PLAYLIST); }
+        String lastModified() { return getString(KEY_LAST_MODIFIED); }
+    }
+}
@@ -2,34 +2,43 @@ package org.simulpiscator.our_radio;
 
 import android.util.Log;
 
-import com.google.gson.Gson;
-
 import java.io.IOException;
-import java.net.URI;
-import java.nio.channels.SelectionKey;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import static java.nio.channels.SelectionKey.OP_READ;
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.handshake.ServerHandshake;
+import java.util.Random;
+import java.util.concurrent.Callable;
 
 class MpdThread {
 
     private static final String TAG = "sp:mpdthread";
-    private volatile Thread mThread;
+    private static final int MAX_COMMAND_LIST_LENGTH = 64;
+    private static final MpdRequest.Priority[] PRIORITIES = MpdRequest.Priority.values();
+    // Supervision: an idle connection is pinged well within MPD's default connection_timeout
+    // of 60 s. A lost connection is reopened with jittered exponential backoff, and queued
+    // requests older than REQUEST_TTL_MS are dropped rather than sent late.
+    static final int KEEPALIVE_MS = 25000;
+    static final int MIN_BACKOFF_MS = 500;
+    static final int MAX_BACKOFF_MS = 30000;
+    static final long REQUEST_TTL_MS = 30000;
     private volatile boolean mTerminate = false;
     private int mTimeoutMs = 1000;
-    private final Object mLock = new Object();
-    private volatile SocketConnection mSocketConnection;
-    private final ConcurrentLinkedQueue<MpdRequest> mRequests;
+    private int mPipelineWindow = 0;
+    // One queue per priority. All queues, mInFlight and mWaitStats are guarded by mRequests.
+    private final Object mRequests = new Object();
+    private final List<ArrayDeque<MpdRequest>> mQueues;
+    private final ArrayList<MpdRequest> mInFlight = new ArrayList<>();
+    private final WaitStats[] mWaitStats;
+    private final ArrayList<Worker> mWorkers = new ArrayList<>();
+    private Callable<SocketConnection> mReconnect, mBulkReconnect;
+    private final Random mRandom = new Random();
     public interface Listener {
         void onMpdError(Exception error);
+        // Called after a lost connection has been reopened, when state may have
+        // changed unnoticed.
+        void onMpdReconnected();
     }
     private final Listener mListener;
     protected void reportError(Exception error) {
@@ -40,52 +49,78 @@ class MpdThread {
         }
     }
 
+    // Time requests spent queued, per priority.
+    static class WaitStats {
+        long count, totalNs, maxNs;
+
+        long getAverageNs() { return count > 0 ? totalNs / count : 0; }
+    }
+
     MpdThread(Listener listener) {
-        mRequests = new ConcurrentLinkedQueue<>();
         mListener = listener;
+        mQueues = new ArrayList<>(PRIORITIES.length);
+        mWaitStats = new WaitStats[PRIORITIES.length];
+        for (int i = 0; i < PRIORITIES.length; ++i) {
+            mQueues.add(new ArrayDeque<MpdRequest>());
+            mWaitStats[i] = new WaitStats();
+        }
     }
 
+    // Serves all requests on the given connection, highest priority first.
     void start(SocketConnection connection) {
-        mSocketConnection = connection;
+        start(connection, null);
+    }
+
+    // If a bulk connection is given, bulk requests are served on it by a second
+    // thread, so they cannot delay interactive requests or state queries.
+    void start(SocketConnection connection, SocketConnection bulkConnection) {
         mTerminate = false;
-        mThread = new Thread(null, null, TAG) {
-            @Override
-            public void run() {
-                try {
-                    synchronized(mLock) {
-                        mLock.notify();
-                    }
-                    ioLoop();
-                } catch (Exception e) {
-                    reportError(e);
-                }
-                synchronized (mLock) {
-                    mLock.notify();
-                }
-            }
-        };
-        mThread.start();
-        synchronized(mLock) {
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                reportError(e);
-            }
+        mWorkers.clear();
+        if (bulkConnection == null) {
+            mWorkers.add(new Worker(TAG, connection, mReconnect,
+                    MpdRequest.Priority.interactive, MpdRequest.Priority.bulk));
+        } else {
+            mWorkers.add(new Worker(TAG, connection, mReconnect,
+                    MpdRequest.Priority.interactive, MpdRequest.Priority.state));
+            mWorkers.add(new Worker(TAG + ":bulk", bulkConnection, mBulkReconnect,
+                    MpdRequest.Priority.bulk, MpdRequest.Priority.bulk));
         }
+        for (Worker worker : mWorkers)
+            worker.start();
+    }
+
+    // Sets how lost connections are reopened. Without, a worker ends when its connection fails.
+    void setReconnect(Callable<SocketConnection> reconnect, Callable<SocketConnection> bulkReconnect) {
+        mReconnect = reconnect;
+        mBulkReconnect = bulkReconnect;
+    }
+
+    // Returns the connection currently used for interactive and state requests.
+    SocketConnection getConnection() {
+        return mWorkers.isEmpty() ? null : mWorkers.get(0).mConnection;
     }
 
     void stop() {
-        if(mThread != null) {
-            mTerminate = true;
+        mTerminate = true;
+        synchronized (mRequests) {
+            for (ArrayDeque<MpdRequest> queue : mQueues)
+                queue.clear();
+            mInFlight.clear();
+            mRequests.notifyAll();
+        }
+        for (Worker worker : mWorkers) {
             try {
-                synchronized (mRequests) {
-                    mRequests.clear();
-                    mRequests.notify();
-                }
-                mThread.join();
+                worker.mThread.join();
             } catch (InterruptedException e) {
                 reportError(e);
             }
+            worker.closeOwnConnection();
+        }
+        mWorkers.clear();
+        for (MpdRequest.Priority priority : PRIORITIES) {
+            WaitStats stats = getQueueWaitStats(priority);
+            Log.d(TAG, priority + " requests: " + stats.count + ", queue wait avg/max: "
+                    + stats.getAverageNs() / 1000000 + "/" + stats.maxNs / 1000000 + " ms");
         }
     }
 
@@ -97,28 +132,355 @@ class MpdThread {
         mTimeoutMs = timeoutMs;
     }
 
-    private void ioLoop() {
-        boolean done = false;
-        try {
+    int getPipelineWindow() {
+        return mPipelineWindow;
+    }
+
+    // Maximum number of requests written ahead of their responses.
+    // Values below 2 disable pipelining, and queued requests are sent as command lists instead.
+    void setPipelineWindow(int window) {
+        mPipelineWindow = window;
+    }
+
+    WaitStats getQueueWaitStats(MpdRequest.Priority priority) {
+        WaitStats stats = new WaitStats();
+        synchronized (mRequests) {
+            WaitStats s = mWaitStats[priority.ordinal()];
+            stats.count = s.count;
+            stats.totalNs = s.totalNs;
+            stats.maxNs = s.maxNs;
+        }
+        return stats;
+    }
+
+    // A thread serving the queues from mFirstLane to mLastLane on its own connection,
+    // which it reopens when it is lost.
+    private class Worker {
+        final String mName;
+        volatile SocketConnection mConnection;
+        final Callable<SocketConnection> mReconnect;
+        final int mFirstLane, mLastLane;
+        Thread mThread;
+        private boolean mOwnsConnection = false; // opened by reconnect()
+        private final ArrayDeque<MpdRequest> mPending = new ArrayDeque<>();
+        // requests taken from the queues, and not done yet
+        private final ArrayList<MpdRequest> mTaken = new ArrayList<>();
+
+        Worker(String name, SocketConnection connection, Callable<SocketConnection> reconnect,
+               MpdRequest.Priority firstLane, MpdRequest.Priority lastLane) {
+            mName = name;
+            mConnection = connection;
+            mReconnect = reconnect;
+            mFirstLane = firstLane.ordinal();
+            mLastLane = lastLane.ordinal();
+        }
+
+        void start() {
+            mThread = new Thread(null, null, mName) {
+                @Override
+                public void run() {
+                    try {
+                        ioLoop();
+                    } catch (Exception e) {
+                        reportError(e);
+                    }
+                }
+            };
+            mThread.start();
+        }
+
+        private void ioLoop() throws Exception {
+            while (!mTerminate) {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    if (mTerminate)
+                        break;
+                    if (mReconnect == null)
+                        throw e;
+                    reportError(e); // once per outage, reconnect() retries until done
+                    recoverTaken();
+                    if (reconnect() && mListener != null)
+                        mListener.onMpdReconnected();
+                }
+            }
+        }
+
+        private void serve() throws Exception {
+            List<MpdRequest> batch = new ArrayList<>();
+            long lastActivity = System.nanoTime();
             while (!mTerminate) {
                 synchronized (mRequests) {
-                    mRequests.wait();
+                    if (!hasRequests() && !mTerminate)
+                        mRequests.wait(KEEPALIVE_MS);
                 }
-                MpdRequest r = mRequests.poll();
-                while (r != null) {
-                    r.process(mSocketConnection, mTimeoutMs);
-                    r = mRequests.poll();
+                MpdRequest r = take(null);
+                if (r == null) {
+                    if (!mTerminate && System.nanoTime() - lastActivity >= KEEPALIVE_MS * 1000000L) {
+                        if (!new MpdRequest("ping").process(mConnection, mTimeoutMs))
+                            Log.w(mName, "ping failed");
+                        lastActivity = System.nanoTime();
+                    }
+                    continue;
+                }
+                lastActivity = System.nanoTime();
+                if (mPipelineWindow > 1)
+                    r = pipeline(r);
+                while (r != null && !mTerminate) {
+                    // a command list only holds requests of one priority, so
+                    // bulk requests never delay responses to more urgent ones,
+                    // and no standalone request
+                    batch.clear();
+                    batch.add(r);
+                    MpdRequest next = null;
+                    while (!r.isStandalone() && batch.size() < MAX_COMMAND_LIST_LENGTH) {
+                        next = take(r.getPriority());
+                        if (next == null || next.isStandalone())
+                            break;
+                        batch.add(next);
+                        next = null;
+                    }
+                    MpdRequest.processList(batch, mConnection, mTimeoutMs);
+                    finished(batch);
+                    r = next != null ? next : take(null);
                 }
+                lastActivity = System.nanoTime();
+            }
+        }
+
+        // Keeps up to mPipelineWindow requests in flight, and matches responses
+        // to pending requests in FIFO order.
+        // Listeners are called while the connection is locked, and must not use it synchronously.
+        private MpdRequest pipeline(MpdRequest r) throws IOException {
+            SocketConnection connection = mConnection;
+            synchronized (connection) {
+                try {
+                    while ((r != null || !mPending.isEmpty()) && !mTerminate) {
+                        while (r != null && mPending.size() < mPipelineWindow) {
+                            r.send(connection);
+                            mPending.add(r);
+                            r = take(null);
+                        }
+                        MpdRequest head = mPending.poll();
+                        head.receive(connection, mTimeoutMs);
+                        head.notifyDone();
+                        finished(Collections.singletonList(head));
+                        if (r == null)
+                            r = take(null);
+                    }
+                } finally {
+                    mPending.clear();
+                }
+            }
+            return r;
+        }
+
+        // After the connection was lost, requests that may have been sent are queued
+        // again at the front of their lanes if they are idempotent, and failed otherwise.
+        private void recoverTaken() {
+            ArrayList<MpdRequest> failed = new ArrayList<>();
+            synchronized (mRequests) {
+                for (int i = mTaken.size() - 1; i >= 0; --i) {
+                    MpdRequest r = mTaken.get(i);
+                    mInFlight.remove(r);
+                    if (r.isDone())
+                        continue;
+                    if (r.isIdempotent())
+                        mQueues.get(r.getPriority().ordinal()).addFirst(r);
+                    else
+                        failed.add(r);
+                }
+                mTaken.clear();
+                updateQueueDepths();
+            }
+            for (MpdRequest r : failed)
+                r.fail("connection lost");
+        }
+
+        // Reopens the connection, waiting between attempts with exponential backoff,
+        // and a random jitter so clients do not retry in lockstep.
+        // Returns false if terminated before succeeding.
+        private boolean reconnect() {
+            closeConnection();
+            long backoffMs = MIN_BACKOFF_MS;
+            while (!mTerminate) {
+                long delayMs = backoffMs / 2 + (long) (mRandom.nextDouble() * backoffMs / 2);
+                synchronized (mRequests) {
+                    try {
+                        if (!mTerminate)
+                            mRequests.wait(delayMs);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                dropExpired();
+                if (mTerminate)
+                    break;
+                try {
+                    mConnection = mReconnect.call();
+                    mOwnsConnection = true;
+                    Log.i(mName, "reconnected");
+                    return true;
+                } catch (Exception e) {
+                    Log.w(mName, "reconnect failed: " + e);
+                    backoffMs = Math.min(2 * backoffMs, MAX_BACKOFF_MS);
+                }
+            }
+            return false;
+        }
+
+        private void closeConnection() {
+            try {
+                mConnection.close();
+            } catch (IOException e) {
+                Log.w(mName, e.toString());
+            }
+        }
+
+        void closeOwnConnection() {
+            if (mOwnsConnection)
+                closeConnection();
+        }
+
+        // Fails queued requests that have waited longer than REQUEST_TTL_MS.
+        private void dropExpired() {
+            ArrayList<MpdRequest> expired = new ArrayList<>();
+            long oldestNs = System.nanoTime() - REQUEST_TTL_MS * 1000000L;
+            synchronized (mRequests) {
+                for (int i = mFirstLane; i <= mLastLane; ++i) {
+                    Iterator<MpdRequest> it = mQueues.get(i).iterator();
+                    while (it.hasNext()) {
+                        MpdRequest r = it.next();
+                        if (r.getPostedNs() - oldestNs < 0) {
+                            it.remove();
+                            expired.add(r);
+                        }
+                    }
+                }
+                updateQueueDepths();
+            }
+            for (MpdRequest r : expired)
+                r.fail("request expired");
+        }
+
+        private void finished(List<MpdRequest> requests) {
+            synchronized (mRequests) {
+                mInFlight.removeAll(requests);
+                mTaken.removeAll(requests);
+                mRequests.notifyAll(); // for requests held back by these
+            }
+        }
+
+        // Must be called while holding mRequests.
+        private boolean hasRequests() {
+            for (int i = mFirstLane; i <= mLastLane; ++i) {
+                MpdRequest r = mQueues.get(i).peek();
+                if (r != null && !isHeldBack(r))
+                    return true;
+            }
+            return false;
+        }
+
+        // Removes the next request from the highest-priority non-empty queue,
+        // and marks it as in flight. If a priority is given, returns null unless
+        // the next request has that priority.
+        // Requests that have waited longer than REQUEST_TTL_MS are failed instead.
+        private MpdRequest take(MpdRequest.Priority only) {
+            ArrayList<MpdRequest> expired = null;
+            try {
+                synchronized (mRequests) {
+                    for (int i = mFirstLane; i <= mLastLane; ++i) {
+                        MpdRequest r;
+                        long waitNs = 0;
+                        while ((r = mQueues.get(i).peek()) != null
+                                && (only == null || only.ordinal() == i)
+                                && (waitNs = System.nanoTime() - r.getPostedNs()) > REQUEST_TTL_MS * 1000000L) {
+                            mQueues.get(i).poll();
+                            if (expired == null)
+                                expired = new ArrayList<>();
+                            expired.add(r);
+                        }
+                        if (r == null || isHeldBack(r))
+                            continue;
+                        if (only != null && only.ordinal() != i)
+                            return null;
+                        mQueues.get(i).poll();
+                        mInFlight.add(r);
+                        mTaken.add(r);
+                        WaitStats stats = mWaitStats[i];
+                        ++stats.count;
+                        stats.totalNs += waitNs;
+                        stats.maxNs = Math.max(stats.maxNs, waitNs);
+                        Metrics.recordQueueWait(PRIORITIES[i], waitNs);
+                        Metrics.setQueueDepth(i, mQueues.get(i).size());
+                        return r;
+                    }
+                    return null;
+                }
+            } finally {
+                if (expired != null)
+                    for (MpdRequest r : expired)
+                        r.fail("request expired");
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
     }
 
-    void post(MpdRequest r) {
-        mRequests.add(r);
+    // Requests posted together are queued in order, and only supersede requests
+    // queued before.
+    void post(MpdRequest... requests) {
         synchronized (mRequests) {
-            mRequests.notify();
+            long now = System.nanoTime();
+            for (MpdRequest r : requests)
+                dropSuperseded(r);
+            for (MpdRequest r : requests) {
+                r.setPostedNs(now);
+                enqueue(r);
+            }
+            updateQueueDepths();
+            mRequests.notifyAll();
         }
     }
+
+    // Drops queued requests superseded by r, passing their listeners on to r.
+    private void dropSuperseded(MpdRequest r) {
+        String key = r.getSupersedeKey();
+        if (key == null)
+            return;
+        for (ArrayDeque<MpdRequest> queue : mQueues) {
+            Iterator<MpdRequest> i = queue.iterator();
+            while (i.hasNext()) {
+                MpdRequest queued = i.next();
+                if (key.equals(queued.getSupersedeKey())) {
+                    r.adoptListeners(queued);
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    // Attaches r to an equal shared request that is queued or in flight, instead
+    // of queueing it.
+    private void enqueue(MpdRequest r) {
+        if (r.isShared()) {
+            for (ArrayDeque<MpdRequest> queue : mQueues)
+                for (MpdRequest queued : queue)
+                    if (queued.isShared() && queued.getCommand().equals(r.getCommand()) && queued.adoptListeners(r))
+                        return;
+            for (MpdRequest inFlight : mInFlight)
+                if (inFlight.isShared() && inFlight.getCommand().equals(r.getCommand()) && inFlight.adoptListeners(r))
+                    return;
+        }
+        mQueues.get(r.getPriority().ordinal()).add(r);
+    }
+
+    // Must be called while holding mRequests.
+    private boolean isHeldBack(MpdRequest r) {
+        return r.getAfter() != null && mInFlight.contains(r.getAfter());
+    }
+
+    // Must be called while holding mRequests.
+    private void updateQueueDepths() {
+        for (int i = 0; i < mQueues.size(); ++i)
+            Metrics.setQueueDepth(i, mQueues.get(i).size());
+    }
 }
@@ -0,0 +1,291 @@
+package org.simulpiscator.our_radio;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.simulpiscator.our_radio.SocketConnection.UTF8;
+
+// The player through OwnTone's JSON API. Requests are sent one at a time from a
+// thread of their own, so HttpURLConnection keeps reusing a single keep-alive
+// connection; bodies are always read to the end, as a connection is only reused
+// then. State is fetched with conditional requests: a response's ETag is sent
+// back in If-None-Match, and on 304 Not Modified the body parsed before is reused.
+class OwnToneBackend implements PlayerBackend {
+    private static final String TAG = "sp:owntone";
+    private static final Gson sGson = new Gson();
+
+    private final String mBaseUrl;
+    private final int mTimeoutMs;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger mPendingVolume = new AtomicInteger(-1);
+    private final Map<String, Cached> mCache = new HashMap<>(); // executor thread only
+
+    // JSON bodies, as far as used here
+    private static class Player {
+        String state;
+        int volume = -1;
+    }
+
+    private static class QueueItem {
+        String uri, title, album, artist;
+    }
+
+    private static class Queue {
+        List<QueueItem> items;
+    }
+
+    private static class JsonOutput {
+        String id, name;
+        boolean selected;
+    }
+
+    private static class Outputs {
+        List<JsonOutput> outputs;
+    }
+
+    private static class Playlist {
+        String name, path, uri;
+    }
+
+    private static class Playlists {
+        List<Playlist> items;
+    }
+
+    private static class Cached {
+        final String etag;
+        final Object value;
+
+        Cached(String etag, Object value) {
+            this.etag = etag;
+            this.value = value;
+        }
+    }
+
+    // port is that of OwnTone's web interface, 3689 by default.
+    OwnToneBackend(String host, int port, int timeoutMs) {
+        mBaseUrl = "http://" + host + ":" + port;
+        mTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void fetchState(final int queries, final StateListener listener) {
+        execute(() -> {
+            long startNs = System.nanoTime();
+            Snapshot snapshot = new Snapshot();
+            try {
+                if ((queries & STATUS) != 0) {
+                    Player player = get("/api/player", Player.class);
+                    snapshot.playing = "play".equals(player.state);
+                    snapshot.volume = player.volume;
+                }
+                if ((queries & CURRENT_SONG) != 0) {
+                    snapshot.song = new Song();
+                    Queue queue = get("/api/queue?id=now_playing", Queue.class);
+                    if (queue.items != null && !queue.items.isEmpty()) {
+                        QueueItem item = queue.items.get(0);
+                        snapshot.song.uri = orEmpty(item.uri);
+                        snapshot.song.title = orEmpty(item.title);
+                        snapshot.song.album = orEmpty(item.album);
+                        snapshot.song.artist = orEmpty(item.artist);
+                    }
+                }
+                if ((queries & OUTPUTS) != 0) {
+                    snapshot.outputs = new ArrayList<>();
+                    Outputs outputs = get("/api/outputs", Outputs.class);
+                    if (outputs.outputs != null)
+                        for (JsonOutput o : outputs.outputs) {
+                            Output output = new Output();
+                            output.id = o.id;
+                            output.name = o.name;
+                            output.enabled = o.selected;
+                            snapshot.outputs.add(output);
+                        }
+                }
+                Metrics.recordStateFetch(System.nanoTime() - startNs);
+            } catch (IOException | JsonParseException e) {
+                snapshot.error = e.toString();
+            }
+            listener.onState(snapshot);
+        });
+    }
+
+    // Stored playlists are looked up by name, or by path, as the MPD interface
+    // may report either.
+    @Override
+    public void play(final String playlist, final DoneListener listener) {
+        execute(() -> {
+            try {
+                String uri = null;
+                Playlists playlists = get("/api/library/playlists", Playlists.class);
+                if (playlists.items != null)
+                    for (Playlist p : playlists.items)
+                        if (playlist.equals(p.name) || (p.path != null && p.path.replaceFirst("^/", "")
+                                .equals(playlist.replaceFirst("^/", "")))) {
+                            uri = p.uri;
+                            break;
+                        }
+                if (uri == null) {
+                    listener.onDone("no such playlist: " + playlist);
+                    return;
+                }
+                send("POST", "/api/queue/items/add?clear=true&playback=start&uris="
+                        + URLEncoder.encode(uri, "UTF-8"), null);
+                listener.onDone(null);
+            } catch (IOException | JsonParseException e) {
+                listener.onDone(e.toString());
+            }
+        });
+    }
+
+    @Override
+    public void stop(final DoneListener listener) {
+        execute(() -> {
+            try {
+                send("PUT", "/api/player/stop", null);
+                listener.onDone(null);
+            } catch (IOException e) {
+                listener.onDone(e.toString());
+            }
+        });
+    }
+
+    @Override
+    public void setVolume(int percent) {
+        if (mPendingVolume.getAndSet(percent) >= 0)
+            return; // the queued task sends the latest volume
+        execute(() -> {
+            int volume = mPendingVolume.getAndSet(-1);
+            try {
+                send("PUT", "/api/player/volume?volume=" + volume, null);
+            } catch (IOException e) {
+                Log.w(TAG, "setting volume failed: " + e);
+            }
+        });
+    }
+
+    @Override
+    public void setOutput(final String id, final boolean enabled) {
+        execute(() -> {
+            try {
+                send("PUT", "/api/outputs/" + URLEncoder.encode(id, "UTF-8"),
+                        "{\"selected\":" + enabled + "}");
+            } catch (IOException e) {
+                Log.w(TAG, "setting output failed: " + e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    // Requests after close() are dropped.
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "closed, request dropped");
+        }
+    }
+
+    private static String orEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    // GETs and parses a JSON body, or reuses the body parsed before if it has not
+    // changed since.
+    private <T> T get(String path, Class<T> type) throws IOException {
+        Cached cached = mCache.get(path);
+        HttpURLConnection connection = open("GET", path);
+        try {
+            if (cached != null)
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            String body = readBody(connection);
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null)
+                return type.cast(cached.value);
+            T value = sGson.fromJson(body, type);
+            if (value == null)
+                throw new JsonParseException("empty response to " + path);
+            String etag = connection.getHeaderField("ETag");
+            if (etag != null)
+                mCache.put(path, new Cached(etag, value));
+            else
+                mCache.remove(path);
+            return value;
+        } catch (IOException e) {
+            connection.disconnect(); // not after success, which would close a reusable connection
+            throw e;
+        }
+    }
+
+    private void send(String method, String path, String json) throws IOException {
+        HttpURLConnection connection = open(method, path);
+        try {
+            if (json != null) {
+                byte[] body = json.getBytes(UTF8);
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            readBody(connection);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    // Reads the body to its end, and fails on an HTTP error status.
+    private static String readBody(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        InputStream in = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (in != null) {
+            try {
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    body.write(buf, 0, n);
+            } finally {
+                in.close();
+            }
+        }
+        if (code >= 400)
+            throw new IOException("HTTP " + code + " " + connection.getResponseMessage());
+        return new String(body.toByteArray(), UTF8);
+    }
+}
@@ -0,0 +1,59 @@
+package org.simulpiscator.our_radio;
+
+import java.util.List;
+
+// Player state and control, independent of the protocol: MpdBackend uses the MPD
+// protocol through MpdThread, OwnToneBackend OwnTone's JSON API. Listeners are
+// called on a backend thread. The MPD connection is needed with either backend,
+// for playlists, art and change notifications.
+interface PlayerBackend {
+    // Parts of the player state, for fetchState().
+    int STATUS = 1; // play state and volume
+    int CURRENT_SONG = 2;
+    int OUTPUTS = 4;
+
+    // The parts of the player state that were fetched. Parts that were not asked
+    // for, or could not be fetched, are null, or -1 for the volume. A song that was
+    // asked for but could not be fetched is empty.
+    final class Snapshot {
+        Boolean playing;
+        int volume = -1;
+        Song song;
+        List<Output> outputs;
+        // set if a response was unusable, so the snapshot should not be applied
+        String error;
+    }
+
+    final class Song {
+        String uri = "", title = "", album = "", artist = "";
+    }
+
+    final class Output {
+        String id, name;
+        boolean enabled;
+    }
+
+    interface StateListener {
+        void onState(Snapshot snapshot);
+    }
+
+    interface DoneListener {
+        // error is null on success
+        void onDone(String error);
+    }
+
+    // queries is a combination of STATUS, CURRENT_SONG and OUTPUTS.
+    void fetchState(int queries, StateListener listener);
+
+    // Replaces the queue with the stored playlist, and starts playing.
+    void play(String playlist, DoneListener listener);
+
+    void stop(DoneListener listener);
+
+    // Only the latest of several pending volume changes is sent.
+    void setVolume(int percent);
+
+    void setOutput(String id, boolean enabled);
+
+    void close();
+}
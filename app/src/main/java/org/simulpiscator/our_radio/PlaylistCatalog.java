@@ -0,0 +1,188 @@
+package org.simulpiscator.our_radio;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// The names of a server's stored playlists, kept in memory and as a snapshot
+// on disk, so the playlist picker does not have to wait for listplaylists.
+// The catalog is refreshed when connecting, and when the server reports a change
+// to stored playlists. The filtered list is recomputed when the pattern changes.
+class PlaylistCatalog {
+    private static final String TAG = "sp:catalog";
+    private static final int FILE_MAGIC = 0x53504331; // "SPC1"
+
+    interface Listener {
+        void onCatalogAvailable(PlaylistCatalog catalog);
+    }
+
+    private final File mFile;
+    private final Handler mDiskHandler;
+    private String[] mNames; // server order, null if unknown
+    private int mGeneration = 0; // incremented on each invalidation
+    private String mFilterPattern;
+    private List<String> mFiltered;
+
+    PlaylistCatalog(File file, Handler diskHandler) {
+        mFile = file;
+        mDiskHandler = diskHandler;
+    }
+
+    // One snapshot file per server.
+    static File getFile(File cacheDir, String host, int port) {
+        String name = "playlists_" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port;
+        return new File(cacheDir, name);
+    }
+
+    // True if subsystem is a change notification that affects stored playlists.
+    // OwnTone reports these as database changes, MPD as stored_playlist.
+    static boolean isAffectedBy(String subsystem) {
+        return subsystem.equals("stored_playlist") || subsystem.equals("database");
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    synchronized boolean isAvailable() {
+        return mNames != null;
+    }
+
+    // Returns the names matching pattern, or null if the catalog is not available.
+    synchronized List<String> get(String pattern) {
+        if (mNames == null)
+            return null;
+        if (mFiltered == null || !pattern.equals(mFilterPattern)) {
+            Pattern p = Pattern.compile(pattern);
+            ArrayList<String> filtered = new ArrayList<>();
+            for (String name : mNames)
+                if (p.matcher(name).matches())
+                    filtered.add(name);
+            mFilterPattern = pattern;
+            mFiltered = Collections.unmodifiableList(filtered);
+        }
+        return mFiltered;
+    }
+
+    // Reads the disk snapshot, unless the catalog has been filled from the server already.
+    void load(final Listener listener) {
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String[] names = read();
+                if (names == null)
+                    return;
+                synchronized (PlaylistCatalog.this) {
+                    if (mNames != null)
+                        return;
+                    setNames(names);
+                }
+                if (listener != null)
+                    listener.onCatalogAvailable(PlaylistCatalog.this);
+            }
+        });
+    }
+
+    // Forgets the catalog after the server reported a change, and fetches it again.
+    // The fetch is not shared with requests in flight, which may predate the change,
+    // and their results are ignored.
+    void invalidate(MpdThread thread) {
+        synchronized (this) {
+            ++mGeneration;
+            setNames(null);
+        }
+        fetch(thread, null, false);
+    }
+
+    // Fetches the catalog from the server. The request is shared, so a refresh
+    // that is already queued or in flight serves further callers as well.
+    void refresh(MpdThread thread, Listener listener) {
+        fetch(thread, listener, true);
+    }
+
+    private void fetch(MpdThread thread, final Listener listener, boolean shared) {
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        thread.post(new MpdRequest("listplaylists", new MpdRequest.OnDoneListener() {
+            @Override
+            void onMpdRequestDone(MpdRequest request) {
+                if (request.getError() == null)
+                    update(request.getResult(), generation);
+                if (listener != null)
+                    listener.onCatalogAvailable(PlaylistCatalog.this);
+            }
+        }).setShared(shared).setPriority(MpdRequest.Priority.bulk));
+    }
+
+    private void update(MpdResult result, int generation) {
+        ArrayList<String> list = new ArrayList<>(result.size());
+        MpdResult.PlaylistEntryView entry = new MpdResult.PlaylistEntryView(result);
+        while (entry.next())
+            list.add(entry.name());
+        final String[] names = list.toArray(new String[list.size()]);
+        synchronized (this) {
+            if (generation != mGeneration || Arrays.equals(names, mNames))
+                return;
+            setNames(names);
+        }
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(names);
+            }
+        });
+    }
+
+    private void setNames(String[] names) {
+        mNames = names;
+        mFiltered = null;
+    }
+
+    private String[] read() {
+        if (!mFile.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != FILE_MAGIC)
+                return null;
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; ++i)
+                names[i] = in.readUTF();
+            return names;
+        } catch (IOException e) {
+            Log.w(TAG, "could not read " + mFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Writes to a temporary file first, so a snapshot is never seen half written.
+    private void write(String[] names) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(names.length);
+            for (String name : names)
+                out.writeUTF(name);
+        } catch (IOException e) {
+            Log.w(TAG, "could not write " + mFile + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(mFile))
+            tmp.delete();
+    }
+}
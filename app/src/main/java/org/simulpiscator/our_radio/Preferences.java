@@ -20,19 +20,28 @@ class Preferences {
     private static final String KEY_MPD_SERVER_IP = "pref_mpd_server_ip";
     private static final String KEY_MPD_SERVER_PORT = "pref_mpd_server_port";
     private static final String KEY_WS_PUSH_PORT = "pref_ws_push_port";
+    private static final String KEY_NOTIFY_SOURCE = "pref_notify_source";
+    private static final String KEY_NOTIFY_HEARTBEAT = "pref_notify_heartbeat";
+    private static final String KEY_PLAYER_BACKEND = "pref_player_backend";
+    private static final String KEY_HTTP_PORT = "pref_http_port";
     private static final String KEY_ENABLE_WIFI = "pref_enable_wifi";
+    private static final String KEY_PIPELINE_WINDOW = "pref_pipeline_window";
+    private static final String KEY_BULK_CONNECTION = "pref_bulk_connection";
     private static final String KEY_PLAYLIST_PATTERN = "pref_playlist_pattern";
+    private static final String KEY_BROWSE_DIRECTORIES = "pref_browse_directories";
     private static final String KEY_OUTPUTS = "pref_outputs";
     private static final String KEY_SLEEP_FADE_DURATION = "pref_sleep_fade_duration";
+    private static final String KEY_SLEEP_FADE_CURVE = "pref_sleep_fade_curve";
     private static final String KEY_CROSS_FADE_DURATION = "pref_cross_fade_duration";
     private static final String KEY_SHUFFLE = "pref_playlist_shuffle";
     private static final String KEY_REPEAT = "pref_playlist_repeat";
+    private static final String KEY_FAST_START = "pref_playlist_fast_start";
     private static final String KEY_SLEEP_TIME = "pref_sleep_time";
     private static final String KEY_INIT_REQUIRED = "pref_init_required";
 
     private static final int SERVER_TIMEOUT_MS = 10000; // long timeout required for loading playlist
     private static final int WIFI_TIMEOUT_MS = 15000;
-    private static final int SLEEP_FADE_STEPS = 32;
+    private static final int MAX_SLEEP_FADE_MS = 60*60*1000;
 
     static class AudioOutput {
         String name, id;
@@ -145,10 +154,59 @@ class Preferences {
         }
     }
 
+    boolean getBulkConnection() {
+        return mPreferences.getBoolean(KEY_BULK_CONNECTION, false);
+    }
+
+    enum NotifySource { websocket, idle };
+    NotifySource getNotifySource() {
+        String s = mPreferences.getString(KEY_NOTIFY_SOURCE, "");
+        if(s.equals("idle"))
+            return NotifySource.idle;
+        return NotifySource.websocket;
+    }
+
+    enum PlayerBackendType { mpd, owntone };
+    PlayerBackendType getPlayerBackend() {
+        String s = mPreferences.getString(KEY_PLAYER_BACKEND, "");
+        if(s.equals("owntone"))
+            return PlayerBackendType.owntone;
+        return PlayerBackendType.mpd;
+    }
+
+    // OwnTone's web interface and JSON API
+    int getServerHttpPort() {
+        String port = mPreferences.getString(KEY_HTTP_PORT, "3689");
+        try {
+            return Integer.decode(port);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    // Seconds between websocket heartbeats, 0 = off.
+    int getNotifyHeartbeatS() {
+        String seconds = mPreferences.getString(KEY_NOTIFY_HEARTBEAT, "10");
+        try {
+            return Math.max(0, Integer.decode(seconds));
+        } catch (Exception e) {
+            return 10;
+        }
+    }
+
     int getServerTimeoutMs() {
         return SERVER_TIMEOUT_MS;
     }
 
+    int getPipelineWindow() {
+        String window = mPreferences.getString(KEY_PIPELINE_WINDOW, "0");
+        try {
+            return Integer.decode(window);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
     enum WifiOptions { leave, enable, ask };
     WifiOptions getEnableWifi() {
         String s = mPreferences.getString(KEY_ENABLE_WIFI, "");
@@ -186,6 +244,10 @@ class Preferences {
         return s;
     }
 
+    boolean getBrowseDirectories() {
+        return mPreferences.getBoolean(KEY_BROWSE_DIRECTORIES, false);
+    }
+
     boolean getShuffle() {
         return mPreferences.getBoolean(KEY_SHUFFLE, false);
     }
@@ -194,6 +256,10 @@ class Preferences {
         return mPreferences.getBoolean(KEY_REPEAT, false);
     }
 
+    boolean getFastStart() {
+        return mPreferences.getBoolean(KEY_FAST_START, false);
+    }
+
     long getSleepTimeMs() { return mPreferences.getLong(KEY_SLEEP_TIME, -1); }
 
     void setSleepTimeMs(long ms) { mPreferences.edit().putLong(KEY_SLEEP_TIME, ms).apply(); }
@@ -201,7 +267,7 @@ class Preferences {
     int getCrossFadeDurationMs() {
         String duration = mPreferences.getString(KEY_CROSS_FADE_DURATION, "0");
         try {
-            return Integer.decode(duration) * 1000;
+            return (int) Math.max(0, Math.min(Integer.decode(duration) * 1000L, Integer.MAX_VALUE));
         } catch (Exception e) {
             return 0;
         }
@@ -210,17 +276,17 @@ class Preferences {
     int getSleepFadeDurationMs() {
         String duration = mPreferences.getString(KEY_SLEEP_FADE_DURATION, "6");
         try {
-            int ms = Integer.decode(duration) * 1000;
-            if (ms >= 10*1000)
-                ms = 9*1000;
-            return ms;
+            return (int) Math.max(0, Math.min(Integer.decode(duration) * 1000L, MAX_SLEEP_FADE_MS));
         } catch (Exception e) {
             return 6*1000;
         }
     }
 
-    int getSleepFadeSteps() {
-        return SLEEP_FADE_STEPS;
+    SleepFader.Curve getSleepFadeCurve() {
+        String s = mPreferences.getString(KEY_SLEEP_FADE_CURVE, "");
+        if(s.equals("linear"))
+            return SleepFader.Curve.linear;
+        return SleepFader.Curve.logarithmic;
     }
 
     boolean isOutputVisible(AudioOutput output) {
@@ -0,0 +1,83 @@
+package org.simulpiscator.our_radio;
+
+import android.os.Handler;
+
+// Collects change notifications, and triggers a single refresh for all notifications
+// arriving within a short window. Each subsystem maps to the queries it affects, so
+// the refresh only asks for what may actually have changed.
+class RefreshScheduler {
+    static final int STATUS = PlayerBackend.STATUS;
+    static final int CURRENT_SONG = PlayerBackend.CURRENT_SONG;
+    static final int OUTPUTS = PlayerBackend.OUTPUTS;
+    static final int ALL = STATUS | CURRENT_SONG | OUTPUTS;
+
+    interface Target {
+        void refresh(int queries);
+    }
+
+    private final Handler mHandler;
+    private final Target mTarget;
+    private final int mWindowMs;
+    private int mPendingQueries = 0;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            int queries;
+            synchronized (RefreshScheduler.this) {
+                queries = mPendingQueries;
+                mPendingQueries = 0;
+            }
+            if (queries != 0) {
+                Metrics.countRefresh();
+                mTarget.refresh(queries);
+            }
+        }
+    };
+
+    RefreshScheduler(Handler handler, int windowMs, Target target) {
+        mHandler = handler;
+        mWindowMs = windowMs;
+        mTarget = target;
+    }
+
+    static int getQueries(String subsystem) {
+        switch (subsystem) {
+            case "":
+                return ALL;
+            case "player":
+                return STATUS | CURRENT_SONG;
+            case "volume":
+            case "options":
+                return STATUS;
+            case "outputs":
+                return OUTPUTS;
+            default:
+                return 0;
+        }
+    }
+
+    void schedule(String subsystem) {
+        Metrics.countNotification(subsystem);
+        schedule(getQueries(subsystem));
+    }
+
+    void schedule(int queries) {
+        if (queries == 0)
+            return;
+        synchronized (this) {
+            boolean idle = (mPendingQueries == 0);
+            mPendingQueries |= queries;
+            if (!idle)
+                return;
+        }
+        mHandler.postDelayed(mFlush, mWindowMs);
+    }
+
+    void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        synchronized (this) {
+            mPendingQueries = 0;
+        }
+    }
+}
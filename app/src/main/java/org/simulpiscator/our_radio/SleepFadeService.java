@@ -0,0 +1,121 @@
+package org.simulpiscator.our_radio;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.io.IOException;
+
+import static android.content.Context.POWER_SERVICE;
+
+// Runs the sleep fade in the foreground, so it may take minutes rather than the
+// few seconds a broadcast receiver is given. Stopping the service cancels the fade.
+public class SleepFadeService extends Service {
+    private static final String TAG = MainActivity.TAG + ":fadesvc";
+    private static final String CHANNEL_ID = "sleep_fade";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int WAKE_LOCK_MARGIN_MS = 30000;
+
+    private Thread mThread;
+    private volatile SleepFader mFader;
+    private volatile boolean mDestroyed = false;
+
+    static void start(Context context) {
+        Intent intent = new Intent(context, SleepFadeService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            context.startForegroundService(intent);
+        else
+            context.startService(intent);
+    }
+
+    static void cancel(Context context) {
+        context.stopService(new Intent(context, SleepFadeService.class));
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (mThread == null) {
+            mThread = new Thread(TAG) {
+                @Override
+                public void run() {
+                    fade();
+                    stopSelf();
+                }
+            };
+            mThread.start();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mDestroyed = true;
+        SleepFader fader = mFader;
+        if (fader != null)
+            fader.cancel();
+        super.onDestroy();
+    }
+
+    private void fade() {
+        Preferences prefs = Preferences.getInstance(this);
+        prefs.setSleepTimeMs(-1);
+        int duration = prefs.getSleepFadeDurationMs();
+        int timeout = prefs.getServerTimeoutMs();
+        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.acquire(duration + 2 * timeout + WAKE_LOCK_MARGIN_MS);
+        SocketConnection connection = null;
+        try {
+            Log.d(TAG, "received sleep alarm, fading out over " + duration + " ms");
+            // a connection of its own, as the fader keeps responses pending
+            connection = MpdConnector.connect(prefs.getServerName(), prefs.getServerPort(), timeout);
+            mFader = new SleepFader(connection, timeout, prefs.getSleepFadeCurve());
+            if (mDestroyed)
+                mFader.cancel();
+            if (!mFader.run(duration))
+                Log.d(TAG, "sleep fade cancelled");
+        } catch (Exception e) {
+            Log.e(TAG, e.getClass() + ": " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.getClass() + ": " + e.getMessage());
+                }
+            }
+            if (wakeLock.isHeld())
+                wakeLock.release();
+        }
+    }
+
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            nm.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.sleep_fade_channel_name), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        return builder
+                .setSmallIcon(R.drawable.icon_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.sleep_fade_notification))
+                .build();
+    }
+}
@@ -0,0 +1,160 @@
+package org.simulpiscator.our_radio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Fades the volume out, then stops playback and restores the volume.
+// Steps are scheduled against deadlines on the monotonic clock rather than slept
+// between, so network delay does not add up over the fade, and each step is sent
+// ahead of its deadline by half the measured round trip time. Steps are sent without
+// waiting for earlier responses; when the fade falls behind, steps whose deadline
+// has passed are skipped rather than sent late.
+class SleepFader {
+    private static final String TAG = "sp:fader";
+    static final int MIN_STEP_MS = 100;
+    // the logarithmic curve falls linearly in dB, over this range
+    static final double FADE_RANGE_DB = 40;
+
+    enum Curve { linear, logarithmic }
+
+    private final SocketConnection mConnection;
+    private final int mTimeoutMs;
+    private final Curve mCurve;
+    private final ArrayDeque<MpdRequest> mPending = new ArrayDeque<>();
+    private final ArrayDeque<Long> mSentNs = new ArrayDeque<>();
+    private long mRttNs = -1; // smoothed
+    private volatile boolean mCancelled = false;
+
+    // The connection must not be used by others while fading.
+    SleepFader(SocketConnection connection, int timeoutMs, Curve curve) {
+        mConnection = connection;
+        mTimeoutMs = timeoutMs;
+        mCurve = curve;
+    }
+
+    // Makes run() restore the volume and return without stopping playback.
+    void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    // Returns the volume after fraction p of the fade.
+    static int volumeAt(int initialVolume, double p, Curve curve) {
+        double gain;
+        if (curve == Curve.logarithmic) {
+            // scaled, so the fade still ends at 0
+            double floor = Math.pow(10, -FADE_RANGE_DB / 20);
+            gain = (Math.pow(10, -FADE_RANGE_DB * p / 20) - floor) / (1 - floor);
+        } else {
+            gain = 1 - p;
+        }
+        return (int) Math.round(initialVolume * Math.max(0, Math.min(1, gain)));
+    }
+
+    // Fades out over durationMs, blocking until done. Returns false if cancelled.
+    boolean run(long durationMs) throws IOException, MpdRequest.ProtocolErrorException {
+        long sentNs = System.nanoTime();
+        MpdRequest status = new MpdRequest("status");
+        if (!status.process(mConnection, mTimeoutMs))
+            throw new MpdRequest.ProtocolErrorException(status.getError());
+        updateRtt(System.nanoTime() - sentNs);
+        int initialVolume = new MpdResult.StatusView(status.getResult()).volume();
+        // without a duration, playback is stopped at once
+        boolean completed = initialVolume <= 0 || durationMs <= 0 || fade(initialVolume, durationMs);
+        if (completed) {
+            MpdRequest stop = new MpdRequest("stop");
+            if (initialVolume > 0) {
+                MpdRequest restore = new MpdRequest("setvol " + initialVolume);
+                MpdRequest.processList(Arrays.asList(stop, restore), mConnection, mTimeoutMs);
+                if (restore.getError() != null) // not executed if stop failed
+                    restore.process(mConnection, mTimeoutMs);
+            } else {
+                stop.process(mConnection, mTimeoutMs);
+            }
+            if (stop.getError() != null)
+                Log.e(TAG, "failed to send stop request: " + stop.getError());
+        } else {
+            new MpdRequest("setvol " + initialVolume).process(mConnection, mTimeoutMs);
+        }
+        return completed;
+    }
+
+    // One step per volume unit, but no closer than MIN_STEP_MS. The last step is
+    // not sent, as it is followed by stopping playback.
+    private boolean fade(int initialVolume, long durationMs) throws IOException {
+        int steps = (int) Math.max(1, Math.min(initialVolume, durationMs / MIN_STEP_MS));
+        long durationNs = durationMs * 1000000;
+        long startNs = System.nanoTime();
+        int lastVolume = initialVolume, skipped = 0;
+        for (int i = 1; i <= steps; ++i) {
+            long deadlineNs = startNs + durationNs * i / steps;
+            if (!waitUntil(deadlineNs - mRttNs / 2))
+                return false;
+            // the latest step that will be due when the command arrives
+            long arrivalNs = System.nanoTime() + mRttNs / 2;
+            int due = (int) Math.min(steps, (arrivalNs - startNs) * steps / durationNs);
+            if (due > i) {
+                skipped += due - i;
+                i = due;
+            }
+            int volume = volumeAt(initialVolume, (double) i / steps, mCurve);
+            if (i < steps && volume != lastVolume) {
+                MpdRequest r = new MpdRequest("setvol " + volume);
+                r.send(mConnection);
+                mPending.add(r);
+                mSentNs.add(System.nanoTime());
+                lastVolume = volume;
+            }
+        }
+        while (!mPending.isEmpty())
+            if (!receiveNext(mTimeoutMs))
+                throw new SocketTimeoutException();
+        long overrunMs = (System.nanoTime() - startNs - durationNs) / 1000000;
+        Log.d(TAG, "faded in " + steps + " steps, " + skipped + " skipped, overrun " + overrunMs
+                + " ms, rtt " + mRttNs / 1000000 + " ms");
+        return true;
+    }
+
+    // Reads responses while waiting. Returns false if cancelled.
+    private boolean waitUntil(long timeNs) throws IOException {
+        while (!mCancelled) {
+            long remainingMs = (timeNs - System.nanoTime()) / 1000000;
+            if (remainingMs <= 0)
+                return true;
+            if (!mPending.isEmpty()) {
+                receiveNext((int) remainingMs);
+            } else {
+                synchronized (this) {
+                    try {
+                        if (!mCancelled)
+                            wait(remainingMs);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Returns false if no response arrived in time.
+    private boolean receiveNext(int timeoutMs) throws IOException {
+        if (!mConnection.waitForRead(timeoutMs))
+            return false;
+        MpdRequest r = mPending.poll();
+        if (!r.receive(mConnection, mTimeoutMs))
+            Log.w(TAG, r.getError());
+        updateRtt(System.nanoTime() - mSentNs.poll());
+        return true;
+    }
+
+    private void updateRtt(long sampleNs) {
+        mRttNs = mRttNs < 0 ? sampleNs : (7 * mRttNs + sampleNs) / 8;
+    }
+}
@@ -1,8 +1,9 @@
 package org.simulpiscator.our_radio;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -22,22 +23,33 @@ class SocketConnection {
     private final SelectionKey mReadKey;
     private final Selector mWriteSelector;
     private final SelectionKey mWriteKey;
-    private final ByteBuffer mBuffer;
+    private ByteBuffer mBuffer;
+    private int mLineStart, mLineEnd;
+    private final Metrics.Traffic mTraffic;
     static private final byte EOL = '\n';
 
     public SocketConnection(String host, int port) throws IOException {
-        SocketAddress address = new InetSocketAddress(host, port);
-        mSocket = SocketChannel.open(address);
+        this(SocketChannel.open(new InetSocketAddress(host, port)));
+    }
+
+    // Takes over a connected channel, see MpdConnector.
+    SocketConnection(SocketChannel socket) throws IOException {
+        mSocket = socket;
         mSocket.configureBlocking(false);
+        // commands are short writes, and pipelined ones must not wait for the
+        // acknowledgement of the one before
+        mSocket.socket().setTcpNoDelay(true);
         mReadSelector = Selector.open();
         mReadKey = mSocket.register(mReadSelector, OP_READ);
         mWriteSelector = Selector.open();
         mWriteKey = mSocket.register(mWriteSelector, OP_WRITE);
         mBuffer = ByteBuffer.allocate(65536);
         mBuffer.flip();
+        mTraffic = Metrics.openConnection(String.valueOf(socket.socket().getRemoteSocketAddress()));
     }
 
     public void close() throws IOException {
+        mTraffic.closed = true;
         mReadSelector.close();
         mWriteSelector.close();
         mSocket.close();
@@ -92,41 +104,102 @@ class SocketConnection {
     }
 
     public String readLine(Charset charset) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        readLineInPlace();
+        return new String(mBuffer.array(), mLineStart, mLineEnd - mLineStart, charset);
+    }
+
+    public void readLineInPlace() throws IOException {
+        readLineInPlace(0);
+    }
 
-        // assuming valid data between buffer's position and limit
-        boolean abort = false;
-        while((mBuffer.hasRemaining() || mSocket.isConnected()) && !abort) {
+    // Reads the next line without decoding it. On return, the line's bytes
+    // (excluding EOL) are found in getLineBuffer() between getLineStart() and
+    // getLineEnd(). They remain valid until the next read from this connection.
+    // Throws SocketTimeoutException if no data arrives for timeoutMs, unless 0.
+    public void readLineInPlace(int timeoutMs) throws IOException {
+        int i = mBuffer.position();
+        while(true) {
             byte[] buf = mBuffer.array();
-            int i = mBuffer.position();
             while(i < mBuffer.limit() && buf[i] != EOL)
                 ++i;
-            sb.append(new String(buf, mBuffer.position(), i - mBuffer.position(), charset));
             if(i < mBuffer.limit()) {
+                mLineStart = mBuffer.position();
+                mLineEnd = i;
                 mBuffer.position(i + 1);
-                break;
+                return;
             }
-            mBuffer.clear();
-            int read = 0;
-            while(read == 0 && !abort) {
-                mReadSelector.selectedKeys().clear();
-                mReadSelector.select();
-                if (mReadSelector.selectedKeys().contains(mReadKey))
-                    abort = !mReadKey.isValid() && !mReadKey.isReadable();
-                else
-                    abort = true;
+            i = fillBuffer(timeoutMs);
+        }
+    }
+
+    // Reads exactly length bytes of binary data into dest at offset, or skips them
+    // if dest is null. Data that is not buffered yet is read from the socket straight
+    // into dest, without passing through the line buffer.
+    public void readBinary(byte[] dest, int offset, int length, int timeoutMs) throws IOException {
+        int buffered = Math.min(length, mBuffer.remaining());
+        if (dest != null)
+            mBuffer.get(dest, offset, buffered);
+        else
+            mBuffer.position(mBuffer.position() + buffered);
+        length -= buffered;
+        ByteBuffer target = dest != null ? ByteBuffer.wrap(dest, offset + buffered, length) : null;
+        while (length > 0) {
+            if (!waitForRead(timeoutMs))
+                throw new SocketTimeoutException();
+            int read;
+            if (target != null) {
+                read = mSocket.read(target);
+            } else {
+                mBuffer.clear();
+                mBuffer.limit(Math.min(length, mBuffer.capacity()));
                 read = mSocket.read(mBuffer);
+                mBuffer.clear();
+                mBuffer.flip();
             }
-            mBuffer.flip();
+            if (read < 0)
+                throw new EOFException();
+            mTraffic.read.addAndGet(read);
+            length -= read;
+        }
+    }
+
+    public byte[] getLineBuffer() { return mBuffer.array(); }
+    public int getLineStart() { return mLineStart; }
+    public int getLineEnd() { return mLineEnd; }
+
+    // Moves unread data to the beginning of the buffer, growing it if it is full,
+    // and appends data from the socket. Returns the amount of data that was kept.
+    // Throws SocketTimeoutException if no data arrives for timeoutMs, unless 0.
+    private int fillBuffer(int timeoutMs) throws IOException {
+        if(mBuffer.position() == 0 && mBuffer.limit() == mBuffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(2 * mBuffer.capacity());
+            grown.put(mBuffer);
+            grown.flip();
+            mBuffer = grown;
         }
-        return sb.toString();
+        int kept = mBuffer.remaining();
+        mBuffer.compact();
+        int read = 0;
+        while(read == 0) {
+            mReadSelector.selectedKeys().clear();
+            if(mReadSelector.select(timeoutMs) == 0 && timeoutMs > 0) {
+                mBuffer.flip();
+                throw new SocketTimeoutException();
+            }
+            read = mSocket.read(mBuffer);
+        }
+        mBuffer.flip();
+        if(read < 0)
+            throw new EOFException();
+        mTraffic.read.addAndGet(read);
+        return kept;
     }
 
     public void writeLine(String s, Charset charset) throws IOException {
         ByteBuffer buf = ByteBuffer.wrap((s + '\n').getBytes(charset));
         while(buf.hasRemaining()) {
             waitForWrite();
-            mSocket.write(buf);
+            mTraffic.written.addAndGet(mSocket.write(buf));
         }
     }
 
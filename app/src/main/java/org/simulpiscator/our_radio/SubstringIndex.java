@@ -0,0 +1,107 @@
+package org.simulpiscator.our_radio;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Case-insensitive substring search over a fixed list of names, for type-to-filter.
+// Each pair of adjacent characters maps to the ids of the names containing it, so a
+// query only looks at the names in the shortest such list. When a query extends the
+// previous one, only the previous matches are looked at.
+class SubstringIndex {
+    private final String[] mNames; // lower case
+    private final HashMap<Integer, int[]> mBigrams = new HashMap<>();
+    private String mLastQuery;
+    private int[] mLastMatches; // ids in ascending order
+
+    SubstringIndex(List<String> names) {
+        mNames = new String[names.size()];
+        HashMap<Integer, int[]> counts = new HashMap<>();
+        for (int id = 0; id < mNames.length; ++id) {
+            String name = names.get(id).toLowerCase(Locale.ROOT);
+            mNames[id] = name;
+            for (int i = 1; i < name.length(); ++i) {
+                int[] count = counts.get(bigram(name, i));
+                if (count == null)
+                    counts.put(bigram(name, i), new int[]{1, id});
+                else if (count[1] != id) {
+                    ++count[0];
+                    count[1] = id;
+                }
+            }
+        }
+        // second pass fills exactly sized lists, ids ascending
+        for (Map.Entry<Integer, int[]> e : counts.entrySet()) {
+            int[] count = e.getValue();
+            mBigrams.put(e.getKey(), new int[count[0]]);
+            count[0] = 0;
+        }
+        for (int id = 0; id < mNames.length; ++id) {
+            String name = mNames[id];
+            for (int i = 1; i < name.length(); ++i) {
+                int[] count = counts.get(bigram(name, i));
+                int[] ids = mBigrams.get(bigram(name, i));
+                if (count[0] == 0 || ids[count[0] - 1] != id)
+                    ids[count[0]++] = id;
+            }
+        }
+    }
+
+    private static int bigram(String s, int i) {
+        return (s.charAt(i - 1) << 16) | s.charAt(i);
+    }
+
+    int size() {
+        return mNames.length;
+    }
+
+    // Returns the ids of all names containing query. Names starting with
+    // query come first, and ids are ascending otherwise.
+    int[] find(String query) {
+        query = query.toLowerCase(Locale.ROOT);
+        int[] candidates = null;
+        int candidateCount = mNames.length;
+        if (mLastQuery != null && query.startsWith(mLastQuery)) {
+            candidates = mLastMatches;
+            candidateCount = candidates.length;
+        }
+        for (int i = 1; i < query.length(); ++i) {
+            int[] ids = mBigrams.get(bigram(query, i));
+            if (ids == null) {
+                candidates = new int[0];
+                candidateCount = 0;
+                break;
+            }
+            if (ids.length < candidateCount) {
+                candidates = ids;
+                candidateCount = ids.length;
+            }
+        }
+        int[] matches = new int[candidateCount];
+        int matchCount = 0, prefixCount = 0;
+        for (int i = 0; i < candidateCount; ++i) {
+            int id = candidates == null ? i : candidates[i];
+            int pos = mNames[id].indexOf(query);
+            if (pos >= 0) {
+                matches[matchCount++] = id;
+                if (pos == 0)
+                    ++prefixCount;
+            }
+        }
+        mLastQuery = query;
+        mLastMatches = Arrays.copyOf(matches, matchCount);
+
+        int[] result = new int[matchCount];
+        int p = 0, q = prefixCount;
+        for (int i = 0; i < matchCount; ++i) {
+            int id = matches[i];
+            if (mNames[id].startsWith(query))
+                result[p++] = id;
+            else
+                result[q++] = id;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,122 @@
+package org.simulpiscator.our_radio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+// The tree of playlists shown by TreePicker, built from slash separated paths.
+// Kept free of Android classes, so it can be benchmarked on a plain JVM.
+class TreeModel {
+
+    static class Node {
+        String name;
+        String value = null;
+        final Node parent;
+        List<Node> children = new ArrayList<Node>();
+        long sortNumber; // from the name's numeric prefix, see getSortNumber()
+        HashMap<String, Node> childIndex; // while building only
+        // Inner nodes of lazily built trees have the server directory they stand for,
+        // and get their children from a TreePicker.Loader.
+        String directory;
+        volatile boolean loaded = true;
+
+        Node(Node _parent, String _name) {
+            parent = _parent;
+            name = _name;
+        }
+        interface Visitor { void visit(Node node); }
+        void visit(Visitor v) {
+            v.visit(this);
+            for(Node child : children)
+                child.visit(v);
+        }
+    }
+
+    // Builds the tree in a single pass over the paths, finding children through a
+    // hash index instead of scanning. Sort keys and display names are computed once
+    // per node when the tree is complete.
+    static Node MakeTree(Collection<String> paths, String commonPrefix) {
+        Node root = new Node(null, commonPrefix);
+        for(String path : paths) {
+            Node node = root;
+            int start = commonPrefix.length();
+            while(true) {
+                int end = path.indexOf('/', start);
+                String name = path.substring(start, end < 0 ? path.length() : end);
+                if(node.childIndex == null)
+                    node.childIndex = new HashMap<>();
+                Node child = node.childIndex.get(name);
+                if(child == null) {
+                    child = new Node(node, name);
+                    node.childIndex.put(name, child);
+                    node.children.add(child);
+                }
+                node = child;
+                if(end < 0)
+                    break;
+                start = end + 1;
+            }
+            node.value = path;
+        }
+        finish(root);
+        return root;
+    }
+
+    private static void finish(Node node) {
+        node.childIndex = null;
+        for(Node child : node.children)
+            finish(child);
+        finishChildren(node);
+    }
+
+    // Replaces the raw path elements of a node's children with display names,
+    // and sorts them.
+    static void finishChildren(Node node) {
+        for(Node child : node.children) {
+            child.sortNumber = getSortNumber(child.name);
+            child.name = getDisplayName(child.name, child.value == null);
+        }
+        Collections.sort(node.children, SORT_ORDER);
+    }
+
+    // Elements with a numeric NN_ prefix sort first, by number, and others by name.
+    private static final Comparator<Node> SORT_ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            if(lhs.sortNumber != rhs.sortNumber)
+                return lhs.sortNumber < rhs.sortNumber ? -1 : 1;
+            return lhs.name.compareTo(rhs.name);
+        }
+    };
+
+    private static long getSortNumber(String name) {
+        int i = getNumberPrefixEnd(name);
+        if(i < 0 || i > 18) // no prefix, or too long for a long
+            return Long.MAX_VALUE;
+        return Long.parseLong(name.substring(0, i));
+    }
+
+    // Returns the index of the '_' ending a numeric prefix, or -1.
+    private static int getNumberPrefixEnd(String name) {
+        int i = 0;
+        while(i < name.length() && name.charAt(i) >= '0' && name.charAt(i) <= '9')
+            ++i;
+        return (i > 0 && i < name.length() && name.charAt(i) == '_') ? i : -1;
+    }
+
+    // Strips the extension and the numeric prefix, and marks inner nodes.
+    private static String getDisplayName(String name, boolean isInner) {
+        int pos = name.lastIndexOf('.');
+        if(pos > 0)
+            name = name.substring(0, pos);
+        pos = getNumberPrefixEnd(name);
+        if(pos >= 0)
+            name = name.substring(pos + 1);
+        if(isInner)
+            name += "…";
+        return name;
+    }
+}
@@ -3,90 +3,261 @@ package org.simulpiscator.our_radio;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.KeyEvent;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import org.simulpiscator.our_radio.TreeModel.Node;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public class TreePicker {
 
-    static class Node {
-        String name;
-        String value = null;
-        final Node parent;
-        List<Node> children = new ArrayList<Node>();
-
-        Node(Node _parent, String _name) {
-            parent = _parent;
-            name = _name;
-        }
-        interface Visitor { void visit(Node node); }
-        void visit(Visitor v) {
-            v.visit(this);
-            for(Node child : children)
-                child.visit(v);
-        }
-    };
-
     interface OnClickListener {
         void onClick(Node node);
     }
+
+    // Fills in the children of nodes that are not loaded, and calls done on the
+    // UI thread, whether loading succeeded or not.
+    interface Loader {
+        void load(Node node, Runnable done);
+    }
+
+    // A single dialog showing one level of the tree at a time, in a ListView that
+    // recycles its rows. Entering text in the search box lists matching leaves
+    // from the whole tree instead. Cancel and back navigate up.
     static class Builder extends AlertDialog.Builder {
+        private CharSequence mTitle;
+        private Node mRoot, mCurrent;
+        private TreePicker.OnClickListener mAction;
+        private Loader mLoader;
+        private List<Node> mLeaves;
+        private SubstringIndex mIndex; // built on first search
+        private EditText mSearch;
+        private NodeAdapter mAdapter;
+        private AlertDialog mDialog;
+
         Builder(Context context) {
             super(context);
         }
+
+        @Override
+        public Builder setTitle(int titleId) {
+            return setTitle(getContext().getText(titleId));
+        }
+
+        @Override
+        public Builder setTitle(CharSequence title) {
+            mTitle = title;
+            super.setTitle(title);
+            return this;
+        }
+
+        Builder setLoader(Loader loader) {
+            mLoader = loader;
+            return this;
+        }
+
         Builder setRoot(final Node root, final TreePicker.OnClickListener action) {
-            CharSequence[] s = new CharSequence[root.children.size()];
-            int i = 0;
-            for(Node child : root.children)
-                s[i++] = child.name;
-            setItems(s, new DialogInterface.OnClickListener() {
+            mRoot = root;
+            mAction = action;
+            View view = LayoutInflater.from(getContext()).inflate(R.layout.tree_picker, null);
+            mSearch = view.findViewById(R.id.tree_picker_search);
+            ListView list = view.findViewById(R.id.tree_picker_list);
+            mAdapter = new NodeAdapter(LayoutInflater.from(getContext()));
+            list.setAdapter(mAdapter);
+            list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
                 @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    Node node = root.children.get(which);
-                    if(node.value != null)
-                        action.onClick(node);
-                    else
-                        setRoot(node, action).create().show();
+                public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                    onNodeClick(mAdapter.getItem(position));
                 }
             });
-            setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+            mSearch.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                }
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                }
+
                 @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    if(root.parent != null)
-                        setRoot(root.parent, action).create().show();
+                public void afterTextChanged(Editable s) {
+                    onSearch(s.toString());
+                }
+            });
+            setView(view);
+            setNegativeButton(android.R.string.cancel, null);
+            setOnKeyListener(new DialogInterface.OnKeyListener() {
+                @Override
+                public boolean onKey(DialogInterface dialog, int keyCode, KeyEvent event) {
+                    if (keyCode != KeyEvent.KEYCODE_BACK || event.getAction() != KeyEvent.ACTION_UP)
+                        return false;
+                    navigateUp();
+                    return true;
                 }
             });
             setCancelable(true);
+            show(root);
             return this;
         }
-    }
 
-    static Node MakeTree(Collection<String> paths, String commonPrefix) {
-        Node root = new Node(null, commonPrefix);
-        for(String path : paths)
-            addLeaf(root, path.substring(commonPrefix.length()), path);
-        return root;
+        @Override
+        public AlertDialog create() {
+            mDialog = super.create();
+            mDialog.setOnShowListener(new DialogInterface.OnShowListener() {
+                @Override
+                public void onShow(DialogInterface dialog) {
+                    // keep the dialog open when navigating up
+                    mDialog.getButton(DialogInterface.BUTTON_NEGATIVE).setOnClickListener(new View.OnClickListener() {
+                        @Override
+                        public void onClick(View v) {
+                            navigateUp();
+                        }
+                    });
+                }
+            });
+            return mDialog;
+        }
+
+        private void show(final Node node) {
+            mCurrent = node;
+            if (!node.loaded && mLoader != null) {
+                mAdapter.setNodes(Collections.<Node>emptyList(), false);
+                mLoader.load(node, new Runnable() {
+                    @Override
+                    public void run() {
+                        mIndex = null; // search new leaves, too
+                        if (mCurrent == node && node.loaded && mSearch.length() == 0)
+                            show(node);
+                    }
+                });
+            } else {
+                mAdapter.setNodes(node.children, false);
+            }
+            if (mDialog != null)
+                mDialog.setTitle(node == mRoot ? mTitle : node.name);
+        }
+
+        private void navigateUp() {
+            if (mSearch.length() > 0)
+                mSearch.setText("");
+            else if (mCurrent.parent != null)
+                show(mCurrent.parent);
+            else if (mDialog != null)
+                mDialog.dismiss();
+        }
+
+        private void onNodeClick(Node node) {
+            if (node.value != null) {
+                if (mDialog != null)
+                    mDialog.dismiss();
+                mAction.onClick(node);
+            } else {
+                mSearch.setText("");
+                show(node);
+            }
+        }
+
+        private void onSearch(String query) {
+            if (query.isEmpty()) {
+                show(mCurrent);
+                return;
+            }
+            if (mIndex == null) {
+                mLeaves = new ArrayList<>();
+                collectLeaves(mRoot, mLeaves);
+                ArrayList<String> names = new ArrayList<>(mLeaves.size());
+                for (Node leaf : mLeaves)
+                    names.add(leaf.name);
+                mIndex = new SubstringIndex(names);
+            }
+            int[] ids = mIndex.find(query);
+            ArrayList<Node> matches = new ArrayList<>(ids.length);
+            for (int id : ids)
+                matches.add(mLeaves.get(id));
+            mAdapter.setNodes(matches, true);
+        }
+
+        private static void collectLeaves(Node node, List<Node> leaves) {
+            if (!node.loaded)
+                return;
+            for (Node child : node.children) {
+                if (child.value != null)
+                    leaves.add(child);
+                collectLeaves(child, leaves);
+            }
+        }
     }
 
-    private static void addLeaf(Node node, String leafPath, String value) {
-        String[] el = leafPath.split("/", 2);
-        if(el.length > 0) {
-            Node n = null;
-            for(Node child : node.children) {
-                if(child.name.equals(el[0])) {
-                    n = child;
-                    break;
-                }
+    // Rows show a node's name, and in search results also the path to its parent.
+    private static class NodeAdapter extends BaseAdapter {
+        private final LayoutInflater mInflater;
+        private List<Node> mNodes = Collections.emptyList();
+        private boolean mShowPath;
+
+        NodeAdapter(LayoutInflater inflater) {
+            mInflater = inflater;
+        }
+
+        void setNodes(List<Node> nodes, boolean showPath) {
+            mNodes = nodes;
+            mShowPath = showPath;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mNodes.size();
+        }
+
+        @Override
+        public Node getItem(int position) {
+            return mNodes.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            if (view == null)
+                view = mInflater.inflate(android.R.layout.simple_list_item_2, parent, false);
+            Node node = getItem(position);
+            TextView text1 = view.findViewById(android.R.id.text1);
+            TextView text2 = view.findViewById(android.R.id.text2);
+            text1.setText(node.name);
+            if (mShowPath) {
+                text2.setText(getPath(node.parent));
+                text2.setVisibility(View.VISIBLE);
+            } else {
+                text2.setVisibility(View.GONE);
             }
-            if(n == null) {
-                n = new Node(node, el[0]);
-                node.children.add(n);
+            return view;
+        }
+
+        private static String getPath(Node node) {
+            StringBuilder path = new StringBuilder();
+            for (; node != null && node.parent != null; node = node.parent) {
+                String name = node.name;
+                if (name.endsWith("…"))
+                    name = name.substring(0, name.length() - 1);
+                path.insert(0, path.length() > 0 ? name + " / " : name);
             }
-            if(el.length > 1)
-                addLeaf(n, el[1], value);
-            else
-                n.value = value;
+            return path.toString();
         }
     }
 }
@@ -1,21 +1,35 @@
 package org.simulpiscator.our_radio;
 
 import android.util.Log;
+import java.io.IOException;
 import java.net.URI;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Random;
 
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 import org.simulpiscator.our_radio.Notify;
 
-class WsThread {
+// Change notifications through OwnTone's notify websocket. The connection is
+// checked with websocket pings: one is sent every heartbeat interval, and the
+// connection is closed when no pong arrived for 1.5 intervals. A lost connection
+// is reopened with jittered exponential backoff, and subscribes again; onOpen()
+// then asks for a catch-up refresh. Outages are recorded in Metrics.
+class WsThread implements ChangeNotifier {
     private static final String TAG = "sp:wsthread";
+    static final int MIN_BACKOFF_MS = 500;
+    static final int MAX_BACKOFF_MS = 30000;
     private volatile Thread mThread;
     private String mIpAddress;
     private int mPort;
+    private int mHeartbeatS = 10;
+    private final Random mRandom = new Random();
+    private final Object mBackoff = new Object();
 
-    private final Object mLock = new Object();
+    private volatile boolean mTerminate = false;
 
     public interface Listener {
         void onWsError(Exception error);
@@ -36,95 +50,153 @@ class WsThread {
         mListener = listener;
     }
 
-    void start(String ip, int port) {
+    int getHeartbeatS() {
+        return mHeartbeatS;
+    }
+
+    // 0 disables heartbeats, so a silently dead connection goes unnoticed.
+    void setHeartbeatS(int seconds) {
+        mHeartbeatS = seconds;
+    }
+
+    @Override
+    public void start(String ip, int port) {
         mIpAddress = ip;
         mPort = port;
+        mTerminate = false;
         mThread = new Thread(null, null, TAG) {
             @Override
             public void run() {
                 try {
-                    synchronized(mLock) {
-                        mLock.notify();
-                    }
                     ioLoop();
                 } catch (Exception e) {
                     reportError(e);
                 }
-                synchronized (mLock) {
-                    mLock.notify();
-                }
             }
         };
         mThread.start();
-        synchronized(mLock) {
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                reportError(e);
-            }
-        }
     }
 
-    void stop() {
-        if(mThread != null && mWsClient != null) {
+    // Does not wait for the thread to start: if stop() comes first, ioLoop()
+    // sees mTerminate; otherwise, stop() sees the client and closes it.
+    @Override
+    public void stop() {
+        if(mThread != null) {
+            mTerminate = true;
+            synchronized (mBackoff) {
+                mBackoff.notifyAll();
+            }
             try {
-                mWsClient.closeBlocking();
+                WebSocketClient client = mWsClient;
+                if(client != null)
+                    client.closeBlocking();
                 mThread.join();
             } catch (InterruptedException e) {
                 reportError(e);
             }
+            mThread = null;
+            mWsClient = null;
         }
     }
 
-    private void ioLoop() {
-        try {
+    private class WsClient extends WebSocketClient {
+        final Notify mNotify = new Notify();
+        final long mLostNs; // when the previous connection was lost, or 0
+        volatile boolean mOpened = false;
+        volatile long mAliveNs; // last sign of life from the server
+        volatile boolean mReportErrors;
+
+        WsClient(URI serverUri, Map<String, String> httpHeaders, long lostNs, boolean reportErrors) {
+            super(serverUri, httpHeaders);
+            mLostNs = lostNs;
+            mReportErrors = reportErrors;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshakedata) {
+            mOpened = true;
+            mReportErrors = true;
+            mAliveNs = System.nanoTime();
+            Notify n = new Notify();
+            n.notify = new String[]{"player", "volume", "outputs", "database"};
+            String json = n.toJson();
+            this.send(json);
+            if (mLostNs != 0) {
+                Metrics.recordNotifyRecovery(System.nanoTime() - mLostNs);
+                Log.i(TAG, "reconnected");
+            }
+            // catch up on changes before the subscription, or while disconnected
             if (mListener != null)
                 mListener.onWsSubsystemChange("");
-            class WsClient extends WebSocketClient {
-
-                final Notify mNotify = new Notify();
+        }
 
-                public WsClient(URI serverUri, Map<String, String> httpHeaders) {
-                    super(serverUri, httpHeaders);
+        @Override
+        public void onMessage(String message) {
+            mAliveNs = System.nanoTime();
+            mNotify.fromJson(message);
+            if (mListener != null) {
+                for (String s : mNotify.notify) {
+                    mListener.onWsSubsystemChange(s);
                 }
+            }
+        }
 
-                @Override
-                public void onOpen(ServerHandshake handshakedata) {
-                    Notify n = new Notify();
-                    n.notify = new String[]{"player", "volume", "outputs"};
-                    String json = n.toJson();
-                    this.send(json);
-                }
+        @Override
+        public void onWebsocketPong(WebSocket conn, Framedata f) {
+            mAliveNs = System.nanoTime();
+            super.onWebsocketPong(conn, f);
+        }
 
-                @Override
-                public void onMessage(String message) {
-                    mNotify.fromJson(message);
-                    if (mListener != null) {
-                        for (String s : mNotify.notify) {
-                            mListener.onWsSubsystemChange(s);
-                        }
-                    }
-                }
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (!mOpened || mTerminate)
+                return;
+            Metrics.recordNotifySilence(System.nanoTime() - mAliveNs);
+            if (mReportErrors) // once per outage, ioLoop() retries until reconnected
+                reportError(new IOException("notification connection lost (" + code + ")"));
+            mReportErrors = false;
+        }
 
-                @Override
-                public void onClose(int code, String reason, boolean remote) {
-                }
+        @Override
+        public void onError(Exception ex) {
+            if (mReportErrors && !mTerminate)
+                reportError(ex);
+            else
+                Log.w(TAG, ex.toString());
+            mReportErrors = false;
+        }
+    }
 
-                @Override
-                public void onError(Exception ex) {
-                    reportError(ex);
-                }
+    private void ioLoop() throws Exception {
+        URI uri = new URI("ws://" + mIpAddress + ":" + mPort);
+        IdentityHashMap<String, String> headers = new IdentityHashMap<>();
+        headers.put("Host", "localhost:" + mPort);
+        headers.put("Origin", "http://localhost:" + mPort);
+        headers.put("Sec-WebSocket-Protocol", "notify");
+
+        long backoffMs = MIN_BACKOFF_MS, lostNs = 0;
+        boolean reportErrors = true;
+        while (!mTerminate) {
+            WsClient client = new WsClient(uri, headers, lostNs, reportErrors);
+            client.setConnectionLostTimeout(mHeartbeatS);
+            mWsClient = client;
+            if (mTerminate)
+                break;
+            client.run(); // returns when the connection is closed
+            if (mTerminate)
+                break;
+            reportErrors = client.mReportErrors;
+            if (client.mOpened) {
+                lostNs = System.nanoTime();
+                backoffMs = MIN_BACKOFF_MS;
+            } else {
+                backoffMs = Math.min(2 * backoffMs, MAX_BACKOFF_MS);
+            }
+            long delayMs = backoffMs / 2 + (long) (mRandom.nextDouble() * backoffMs / 2);
+            synchronized (mBackoff) {
+                if (!mTerminate)
+                    mBackoff.wait(delayMs);
             }
-            URI uri = new URI("ws://" + mIpAddress + ":" + mPort);
-            IdentityHashMap<String, String> headers = new IdentityHashMap<>();
-            headers.put("Host", "localhost:" + mPort);
-            headers.put("Origin", "http://localhost:" + mPort);
-            headers.put("Sec-WebSocket-Protocol", "notify");
-
-            mWsClient = new WsClient(uri, headers);
-            mWsClient.run();
-        } catch (Exception e) {
-            reportError(e);
         }
     }
 }
@@ -0,0 +1,91 @@
+package org.simulpiscator.our_radio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// A loopback server for a single client. In request mode, it greets like MPD and
+// answers each command with a canned response. In stream mode, it sends the same
+// data over and over, for benchmarking reads without round trips.
+class CannedServer implements AutoCloseable {
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private final Map<String, byte[]> mResponses = new HashMap<>();
+    private byte[] mStream;
+    private volatile boolean mClosed = false;
+
+    static CannedServer respond(Map<String, String> responses) throws IOException {
+        CannedServer server = new CannedServer();
+        for (Map.Entry<String, String> e : responses.entrySet())
+            server.mResponses.put(e.getKey(), e.getValue().getBytes(StandardCharsets.UTF_8));
+        server.mThread.start();
+        return server;
+    }
+
+    static CannedServer stream(byte[] data) throws IOException {
+        CannedServer server = new CannedServer();
+        server.mStream = data;
+        server.mThread.start();
+        return server;
+    }
+
+    private CannedServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mThread = new Thread("canned-server") {
+            @Override
+            public void run() {
+                try (Socket socket = mServerSocket.accept()) {
+                    socket.setTcpNoDelay(true);
+                    if (mStream != null)
+                        stream(socket.getOutputStream());
+                    else
+                        respond(socket);
+                } catch (IOException e) {
+                    if (!mClosed)
+                        e.printStackTrace();
+                }
+            }
+        };
+        mThread.setDaemon(true);
+    }
+
+    SocketConnection connect() throws IOException {
+        InetSocketAddress address = (InetSocketAddress) mServerSocket.getLocalSocketAddress();
+        SocketConnection connection = new SocketConnection(address.getHostString(), address.getPort());
+        if (mStream == null)
+            connection.readLine(); // greeting
+        return connection;
+    }
+
+    private void respond(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write("OK MPD 0.23.5\n".getBytes(StandardCharsets.US_ASCII));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            int end = line.indexOf(' ');
+            byte[] response = mResponses.get(end < 0 ? line : line.substring(0, end));
+            out.write(response != null ? response : "ACK [5@0] {} unknown command\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+
+    private void stream(OutputStream out) throws IOException {
+        while (!mClosed)
+            out.write(mStream);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mServerSocket.close();
+    }
+}
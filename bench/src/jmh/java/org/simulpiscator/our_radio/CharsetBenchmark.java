@@ -0,0 +1,46 @@
+package org.simulpiscator.our_radio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// MpdParser.value() for a typical title: a single UTF-8 pass for ASCII and UTF-8,
+// and a strict second pass before the Latin-1 fallback.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CharsetBenchmark {
+    private static final String TITLE = "Nachtmusik – Öffentlich-rechtliche Klänge aus Köln";
+
+    @Param({"ascii", "latin1", "utf8"})
+    public String encoding;
+
+    private byte[] mValue;
+
+    @Setup
+    public void setup() {
+        switch (encoding) {
+            case "ascii":
+                mValue = "Nachtmusik - Oeffentlich-rechtliche Klaenge aus Koeln".getBytes(StandardCharsets.US_ASCII);
+                break;
+            case "latin1":
+                mValue = TITLE.replace('–', '-').getBytes(StandardCharsets.ISO_8859_1);
+                break;
+            default:
+                mValue = TITLE.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public String value() {
+        return MpdParser.value(mValue, 0, mValue.length);
+    }
+}
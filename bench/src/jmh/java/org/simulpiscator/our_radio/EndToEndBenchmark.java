@@ -0,0 +1,46 @@
+package org.simulpiscator.our_radio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+// Latency distributions of the end-to-end scenarios, per network profile.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark {
+    @Param({"lan", "wifi", "congested"})
+    public String profile;
+
+    private Scenarios mScenarios;
+    private int mVolume = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        mScenarios = new Scenarios(Scenarios.Profile.valueOf(profile));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mScenarios.close();
+    }
+
+    @Benchmark
+    public long status() throws InterruptedException {
+        return mScenarios.statusNs();
+    }
+
+    @Benchmark
+    public long notifyRefresh() throws InterruptedException {
+        mVolume = (mVolume + 1) % 100;
+        return mScenarios.notifyRefreshNs(mVolume);
+    }
+}
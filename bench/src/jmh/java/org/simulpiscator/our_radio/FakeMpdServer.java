@@ -0,0 +1,423 @@
+package org.simulpiscator.our_radio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// An in-process MPD server on loopback, built on a single NIO selector thread.
+// It keeps a little player state, answers the commands the app sends, and reports
+// state changes to a listener, e.g. a FakeNotifyServer. Faults can be injected
+// while it runs: response delay with jitter, per command delays, responses split
+// into small writes, and dropping connections after a number of commands.
+class FakeMpdServer implements AutoCloseable {
+    interface ChangeListener {
+        void onChange(String subsystem); // OwnTone's subsystem names
+    }
+
+    // A command as received, with its arrival time.
+    static class Event {
+        final long ns;
+        final String command;
+
+        Event(long ns, String command) {
+            this.ns = ns;
+            this.command = command;
+        }
+    }
+
+    // fault injection
+    volatile int delayMs = 0, jitterMs = 0;
+    volatile int fragmentBytes = 0, fragmentGapMs = 1; // 0: respond in one write
+    volatile int disconnectAfter = 0; // commands per connection, 0: never
+    private final Map<String, Integer> mCommandDelayMs = new ConcurrentHashMap<>();
+
+    private final ServerSocketChannel mServer;
+    private final Selector mSelector;
+    private final Thread mThread;
+    private volatile boolean mClosed = false;
+    private final Random mRandom = new Random(1);
+    private final ArrayList<Client> mClients = new ArrayList<>();
+    private final PriorityQueue<Write> mWrites = new PriorityQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final List<Event> mLog = Collections.synchronizedList(new ArrayList<Event>());
+    private volatile ChangeListener mChangeListener;
+    private long mWriteCount = 0;
+
+    // player state, on the server thread only
+    private int mVolume = 50;
+    private String mState = "stop";
+    private int mPlaylistLength = 0;
+    private final String mPlaylists;
+
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(65536);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        List<String> commandList; // while receiving one
+        boolean listOk;
+        int commands = 0;
+        long lastDueNs = 0; // keeps responses in order
+        boolean closeAfterWrite = false;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Write implements Comparable<Write> {
+        final Client client;
+        final ByteBuffer data; // null to close
+        final long dueNs, seq;
+
+        Write(Client client, ByteBuffer data, long dueNs, long seq) {
+            this.client = client;
+            this.data = data;
+            this.dueNs = dueNs;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Write other) {
+            if (dueNs != other.dueNs)
+                return dueNs - other.dueNs < 0 ? -1 : 1;
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private static class Ack extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Ack(String message) {
+            super(message);
+        }
+    }
+
+    FakeMpdServer(int playlists) throws IOException {
+        String response = Responses.listplaylists(playlists);
+        mPlaylists = response.substring(0, response.length() - "OK\n".length());
+        mServer = ServerSocketChannel.open();
+        mServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mServer.configureBlocking(false);
+        mSelector = Selector.open();
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = new Thread("fake-mpd") {
+            @Override
+            public void run() {
+                try {
+                    loop();
+                } catch (IOException e) {
+                    if (!mClosed)
+                        e.printStackTrace();
+                }
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    String getHost() {
+        return "127.0.0.1";
+    }
+
+    int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    void setChangeListener(ChangeListener listener) {
+        mChangeListener = listener;
+    }
+
+    void setCommandDelayMs(String verb, int delayMs) {
+        mCommandDelayMs.put(verb, delayMs);
+    }
+
+    // Commands received since the last call.
+    List<Event> takeLog() {
+        synchronized (mLog) {
+            ArrayList<Event> log = new ArrayList<>(mLog);
+            mLog.clear();
+            return log;
+        }
+    }
+
+    // Closes all client connections, without a response to pending commands.
+    void disconnectAll() {
+        mTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                for (Client client : new ArrayList<>(mClients))
+                    close(client);
+            }
+        });
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mSelector.wakeup();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Client client : mClients)
+            client.channel.close();
+        mSelector.close();
+        mServer.close();
+    }
+
+    private void loop() throws IOException {
+        while (!mClosed) {
+            long timeoutMs = 0;
+            Write next = mWrites.peek();
+            if (next != null)
+                timeoutMs = Math.max(1, (next.dueNs - System.nanoTime()) / 1000000);
+            mSelector.select(timeoutMs);
+            Runnable task;
+            while ((task = mTasks.poll()) != null)
+                task.run();
+            for (SelectionKey key : mSelector.selectedKeys()) {
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable())
+                    accept();
+                else {
+                    Client client = (Client) key.attachment();
+                    if (key.isReadable())
+                        read(client);
+                    if (key.isValid() && key.isWritable())
+                        flush(client);
+                }
+            }
+            mSelector.selectedKeys().clear();
+            long now = System.nanoTime();
+            while ((next = mWrites.peek()) != null && next.dueNs - now <= 0) {
+                mWrites.poll();
+                if (!next.client.channel.isOpen())
+                    continue;
+                if (next.data == null) {
+                    next.client.closeAfterWrite = true;
+                } else {
+                    next.client.out.add(next.data);
+                }
+                flush(next.client);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServer.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        channel.register(mSelector, SelectionKey.OP_READ, client);
+        mClients.add(client);
+        client.out.add(ascii("OK MPD 0.23.5\n"));
+        flush(client);
+    }
+
+    private void read(Client client) throws IOException {
+        int n;
+        try {
+            n = client.channel.read(client.in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close(client);
+            return;
+        }
+        ByteBuffer in = client.in;
+        int start = 0;
+        for (int i = 0; i < in.position(); ++i) {
+            if (in.get(i) == '\n') {
+                String line = new String(in.array(), start, i - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                onLine(client, line);
+                if (!client.channel.isOpen())
+                    return;
+            }
+        }
+        in.flip();
+        in.position(start);
+        in.compact();
+    }
+
+    private void onLine(Client client, String line) {
+        mLog.add(new Event(System.nanoTime(), line));
+        if (client.commandList != null) {
+            if (line.equals("command_list_end")) {
+                List<String> commands = client.commandList;
+                client.commandList = null;
+                onCommands(client, commands, client.listOk);
+            } else {
+                client.commandList.add(line);
+            }
+        } else if (line.equals("command_list_ok_begin") || line.equals("command_list_begin")) {
+            client.commandList = new ArrayList<>();
+            client.listOk = line.equals("command_list_ok_begin");
+        } else {
+            onCommands(client, Collections.singletonList(line), false);
+        }
+    }
+
+    private void onCommands(Client client, List<String> commands, boolean listOk) {
+        if (disconnectAfter > 0 && ++client.commands >= disconnectAfter) {
+            schedule(client, null, System.nanoTime());
+            return;
+        }
+        StringBuilder response = new StringBuilder();
+        int index = 0;
+        try {
+            for (String command : commands) {
+                response.append(execute(command));
+                if (listOk)
+                    response.append("list_OK\n");
+                ++index;
+            }
+            response.append("OK\n");
+        } catch (Ack ack) {
+            response.append("ACK [5@").append(index).append("] {} ").append(ack.getMessage()).append('\n');
+        }
+        Integer delay = mCommandDelayMs.get(verb(commands.get(0)));
+        long delayNs = (delay != null ? delay : delayMs) * 1000000L;
+        if (jitterMs > 0)
+            delayNs += (long) (mRandom.nextDouble() * jitterMs * 1000000L);
+        long dueNs = Math.max(System.nanoTime() + delayNs, client.lastDueNs);
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        int fragment = fragmentBytes > 0 ? fragmentBytes : bytes.length;
+        for (int offset = 0; offset < bytes.length; offset += fragment) {
+            schedule(client, ByteBuffer.wrap(bytes, offset, Math.min(fragment, bytes.length - offset)), dueNs);
+            dueNs += fragmentGapMs * 1000000L;
+        }
+    }
+
+    private void schedule(Client client, ByteBuffer data, long dueNs) {
+        client.lastDueNs = dueNs;
+        mWrites.add(new Write(client, data, dueNs, mWriteCount++));
+    }
+
+    private String execute(String command) throws Ack {
+        String verb = verb(command);
+        String args = command.length() > verb.length() ? command.substring(verb.length() + 1).trim() : "";
+        switch (verb) {
+            case "status":
+                return "volume: " + mVolume + "\nrepeat: 0\nrandom: 0\nsingle: 0\nconsume: 0\n"
+                        + "playlistlength: " + mPlaylistLength + "\nstate: " + mState + "\n";
+            case "currentsong":
+                if (mState.equals("stop"))
+                    return "";
+                String song = Responses.CURRENTSONG;
+                return song.substring(0, song.length() - "OK\n".length());
+            case "outputs":
+                String outputs = Responses.outputs(4);
+                return outputs.substring(0, outputs.length() - "OK\n".length());
+            case "listplaylists":
+                return mPlaylists;
+            case "setvol":
+                try {
+                    mVolume = Integer.parseInt(args);
+                } catch (NumberFormatException e) {
+                    throw new Ack("need an integer");
+                }
+                changed("volume");
+                return "";
+            case "play":
+                mState = "play";
+                changed("player");
+                return "";
+            case "stop":
+                mState = "stop";
+                changed("player");
+                return "";
+            case "clear":
+                mPlaylistLength = 0;
+                mState = "stop";
+                changed("queue");
+                return "";
+            case "load":
+                int range = args.lastIndexOf(' ');
+                int count = 100;
+                if (range > 0 && args.indexOf(':', range) > 0) {
+                    String[] bounds = args.substring(range + 1).split(":");
+                    count = Integer.parseInt(bounds[1]) - Integer.parseInt(bounds[0]);
+                }
+                mPlaylistLength += count;
+                changed("queue");
+                return "";
+            case "enableoutput":
+            case "disableoutput":
+                changed("outputs");
+                return "";
+            case "ping":
+            case "crossfade":
+            case "random":
+            case "repeat":
+                return "";
+            default:
+                throw new Ack("unknown command \"" + verb + "\"");
+        }
+    }
+
+    private void changed(String subsystem) {
+        ChangeListener listener = mChangeListener;
+        if (listener != null)
+            listener.onChange(subsystem);
+    }
+
+    private void flush(Client client) {
+        try {
+            while (!client.out.isEmpty()) {
+                ByteBuffer data = client.out.peek();
+                client.channel.write(data);
+                if (data.hasRemaining())
+                    break;
+                client.out.poll();
+            }
+            if (client.out.isEmpty() && client.closeAfterWrite) {
+                close(client);
+                return;
+            }
+            client.channel.keyFor(mSelector).interestOps(client.out.isEmpty()
+                    ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close(client);
+        }
+    }
+
+    private void close(Client client) {
+        mClients.remove(client);
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private static String verb(String command) {
+        int end = command.indexOf(' ');
+        return end < 0 ? command : command.substring(0, end);
+    }
+
+    private static ByteBuffer ascii(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+}
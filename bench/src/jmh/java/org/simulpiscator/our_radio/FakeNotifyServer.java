@@ -0,0 +1,127 @@
+package org.simulpiscator.our_radio;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// An in-process stand-in for OwnTone's notify websocket. Clients subscribe by
+// sending {"notify":[...]}, and are sent the subsystems they subscribed to when
+// FakeMpdServer reports a change, after a configurable delay with jitter.
+// Connections can be dropped, or stalled: a stalled connection stays open, but
+// sends neither notifications nor pongs, as when the server hangs.
+class FakeNotifyServer extends WebSocketServer implements FakeMpdServer.ChangeListener {
+    volatile int delayMs = 0, jitterMs = 0;
+
+    private final Map<WebSocket, Set<String>> mSubscriptions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Random mRandom = new Random(2);
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private volatile CountDownLatch mSubscribed = new CountDownLatch(1);
+    private final Set<WebSocket> mStalled = ConcurrentHashMap.newKeySet();
+    private volatile long mLastCloseNs = 0;
+
+    FakeNotifyServer() {
+        super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        setReuseAddr(true);
+    }
+
+    // Starts, and waits until the port is known.
+    void startAndWait() throws InterruptedException {
+        start();
+        if (!mStarted.await(5, TimeUnit.SECONDS))
+            throw new IllegalStateException("notify server did not start");
+    }
+
+    // Waits for the next subscription.
+    boolean awaitSubscription(long timeoutMs) throws InterruptedException {
+        boolean subscribed = mSubscribed.await(timeoutMs, TimeUnit.MILLISECONDS);
+        mSubscribed = new CountDownLatch(1);
+        return subscribed;
+    }
+
+    // Closes all client connections abruptly.
+    void disconnectAll() {
+        for (WebSocket connection : new ArrayList<>(getConnections()))
+            connection.closeConnection(1006, "dropped by test");
+    }
+
+    // Stalls all client connections.
+    void stallAll() {
+        mStalled.addAll(getConnections());
+    }
+
+    // When a client connection was last closed, by either side.
+    long getLastCloseNs() {
+        return mLastCloseNs;
+    }
+
+    void shutdown() throws InterruptedException {
+        mExecutor.shutdownNow();
+        stop(1000);
+    }
+
+    @Override
+    public void onChange(final String subsystem) {
+        long delay = delayMs + (jitterMs > 0 ? (long) (mRandom.nextDouble() * jitterMs) : 0);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Notify notify = new Notify();
+                notify.notify = new String[]{subsystem};
+                String message = notify.toJson();
+                for (Map.Entry<WebSocket, Set<String>> e : mSubscriptions.entrySet())
+                    if (e.getValue().contains(subsystem) && e.getKey().isOpen() && !mStalled.contains(e.getKey()))
+                        e.getKey().send(message);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onStart() {
+        mStarted.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        Notify subscription = new Notify();
+        subscription.fromJson(message);
+        mSubscriptions.put(conn, new HashSet<>(Arrays.asList(subscription.notify)));
+        mSubscribed.countDown();
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        mLastCloseNs = System.nanoTime();
+        mSubscriptions.remove(conn);
+        mStalled.remove(conn);
+    }
+
+    @Override
+    public void onWebsocketPing(WebSocket conn, Framedata f) {
+        if (!mStalled.contains(conn))
+            super.onWebsocketPing(conn, f);
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+    }
+}
@@ -0,0 +1,158 @@
+package org.simulpiscator.our_radio;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An in-process stand-in for OwnTone's JSON API, on the JDK's HTTP server. It
+// keeps a little player state, and serves it with ETags, answering a matching
+// If-None-Match with 304. Responses are delayed by a configurable time with
+// jitter. Requests, 304 responses and client connections are counted.
+class FakeOwnToneServer implements AutoCloseable {
+    volatile int delayMs = 0, jitterMs = 0;
+
+    final AtomicInteger requests = new AtomicInteger(), notModified = new AtomicInteger();
+    private final Set<Integer> mClientPorts = ConcurrentHashMap.newKeySet();
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Random mRandom = new Random(3);
+    private final int mPlaylistCount;
+
+    // player state, guarded by this
+    private int mVolume = 50;
+    private String mState = "stop";
+    private final boolean[] mOutputs = {true, false, false, false};
+
+    FakeOwnToneServer(int playlistCount) throws IOException {
+        mPlaylistCount = playlistCount;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/api/", this::handle);
+        mServer.start();
+    }
+
+    String getHost() {
+        return mServer.getAddress().getAddress().getHostAddress();
+    }
+
+    int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    // The number of connections clients have opened so far.
+    int getConnectionCount() {
+        return mClientPorts.size();
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            mClientPorts.add(exchange.getRemoteAddress().getPort());
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() >= 0)
+                    ;
+            }
+            long delay = delayMs + (jitterMs > 0 ? (long) (mRandom.nextDouble() * jitterMs) : 0);
+            if (delay > 0)
+                Thread.sleep(delay);
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getQuery();
+            if (method.equals("GET"))
+                sendJson(exchange, get(path, query));
+            else
+                sendEmpty(exchange, update(path, query) ? 204 : 404);
+        } catch (InterruptedException e) {
+            sendEmpty(exchange, 503);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized String get(String path, String query) {
+        switch (path) {
+            case "/api/player":
+                return "{\"state\":\"" + mState + "\",\"repeat\":\"off\",\"consume\":false,\"shuffle\":false,"
+                        + "\"volume\":" + mVolume + ",\"item_id\":1,\"item_length_ms\":0,\"item_progress_ms\":0}";
+            case "/api/queue":
+                if (mState.equals("stop") || query == null || !query.contains("id=now_playing"))
+                    return "{\"version\":1,\"count\":0,\"items\":[]}";
+                return "{\"version\":1,\"count\":1,\"items\":[{\"id\":1,\"position\":0,\"title\":\"A Radio Station\","
+                        + "\"artist\":\"Some Artist\",\"album\":\"Morning Show\",\"uri\":\"http://radio.example/stream\"}]}";
+            case "/api/outputs":
+                StringBuilder outputs = new StringBuilder("{\"outputs\":[");
+                for (int i = 0; i < mOutputs.length; ++i)
+                    outputs.append(i > 0 ? "," : "").append("{\"id\":\"").append(100 + i)
+                            .append("\",\"name\":\"Output ").append(i).append("\",\"type\":\"ALSA\",\"selected\":")
+                            .append(mOutputs[i]).append(",\"volume\":").append(mVolume).append('}');
+                return outputs.append("]}").toString();
+            case "/api/library/playlists":
+                StringBuilder playlists = new StringBuilder("{\"items\":[");
+                for (int i = 0; i < mPlaylistCount; ++i)
+                    playlists.append(i > 0 ? "," : "").append("{\"id\":").append(i)
+                            .append(",\"name\":\"playlist ").append(i).append("\",\"path\":\"/srv/playlist ").append(i)
+                            .append(".m3u\",\"uri\":\"library:playlist:").append(i).append("\"}");
+                return playlists.append("],\"total\":").append(mPlaylistCount).append('}').toString();
+            default:
+                return null;
+        }
+    }
+
+    private synchronized boolean update(String path, String query) {
+        if (path.equals("/api/player/stop")) {
+            mState = "stop";
+        } else if (path.equals("/api/player/volume") && query != null && query.startsWith("volume=")) {
+            mVolume = Integer.parseInt(query.substring("volume=".length()));
+        } else if (path.equals("/api/queue/items/add")) {
+            mState = "play";
+        } else if (path.startsWith("/api/outputs/")) {
+            int i = Integer.parseInt(path.substring("/api/outputs/".length())) - 100;
+            mOutputs[i] = !mOutputs[i];
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void sendJson(HttpExchange exchange, String json) throws IOException {
+        if (json == null) {
+            sendEmpty(exchange, 404);
+            return;
+        }
+        String etag = "\"" + Integer.toHexString(json.hashCode()) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            sendEmpty(exchange, 304);
+            return;
+        }
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int code) throws IOException {
+        exchange.sendResponseHeaders(code, -1);
+    }
+}
@@ -0,0 +1,26 @@
+package org.simulpiscator.our_radio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Decoding an OwnTone websocket notification, as WsThread does for each message.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NotifyBenchmark {
+    private static final String MESSAGE = "{\"notify\":[\"player\",\"volume\",\"outputs\"]}";
+
+    private final Notify mNotify = new Notify(); // reused, like in WsThread
+
+    @Benchmark
+    public String[] fromJson() {
+        mNotify.fromJson(MESSAGE);
+        return mNotify.notify;
+    }
+}
@@ -0,0 +1,58 @@
+package org.simulpiscator.our_radio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// SocketConnection line reading from a socket that always has data, so the
+// numbers reflect buffering and line splitting rather than round trips.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReadLineBenchmark {
+    private static final int LINES = 10000;
+
+    private CannedServer mServer;
+    private SocketConnection mConnection;
+
+    @Setup
+    public void setup() throws IOException {
+        // whole listplaylists responses, so every invocation reads the same lines
+        byte[] block = Responses.listplaylists(LINES / 2).replace("OK\n", "").getBytes(StandardCharsets.UTF_8);
+        mServer = CannedServer.stream(block);
+        mConnection = mServer.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mServer.close();
+        mConnection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void readLine(Blackhole bh) throws IOException {
+        for (int i = 0; i < LINES; ++i)
+            bh.consume(mConnection.readLine());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void readLineInPlace(Blackhole bh) throws IOException {
+        for (int i = 0; i < LINES; ++i) {
+            mConnection.readLineInPlace();
+            bh.consume(mConnection.getLineEnd());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.simulpiscator.our_radio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// MpdRequest.process() round trips over loopback, including response parsing.
+// listplaylists answers with 5000 playlists, i.e. 10k lines.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseBenchmark {
+    private static final int TIMEOUT_MS = 10000;
+
+    @Param({"status", "outputs", "listplaylists"})
+    public String command;
+
+    private CannedServer mServer;
+    private SocketConnection mConnection;
+
+    @Setup
+    public void setup() throws IOException {
+        HashMap<String, String> responses = new HashMap<>();
+        responses.put("status", Responses.STATUS);
+        responses.put("outputs", Responses.outputs(8));
+        responses.put("listplaylists", Responses.listplaylists(5000));
+        mServer = CannedServer.respond(responses);
+        mConnection = mServer.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mServer.close();
+        mConnection.close();
+    }
+
+    @Benchmark
+    public MpdResult process() throws IOException {
+        MpdRequest request = new MpdRequest(command);
+        if (!request.process(mConnection, TIMEOUT_MS))
+            throw new IllegalStateException(request.getError());
+        return request.getResult();
+    }
+}
@@ -0,0 +1,41 @@
+package org.simulpiscator.our_radio;
+
+import java.util.Locale;
+
+// Typical MPD responses, as OwnTone sends them.
+final class Responses {
+    private Responses() {}
+
+    static final String STATUS = "volume: 42\nrepeat: 0\nrandom: 1\nsingle: 0\nconsume: 0\n"
+            + "playlist: 17\nplaylistlength: 1\nmixrampdb: 0.000000\nstate: play\nsong: 0\n"
+            + "songid: 12\nnextsong: 0\nnextsongid: 12\ntime: 1834:0\nelapsed: 1834.208\n"
+            + "bitrate: 128\naudio: 44100:16:2\nxfade: 0\nOK\n";
+
+    static final String CURRENTSONG = "file: http://stream.example.org/radio.mp3\n"
+            + "Title: Nachtmusik – Öffentlich-rechtliche Klänge\nName: Radio Beispiel\n"
+            + "Artist: Übertragung\nPos: 0\nId: 12\nOK\n";
+
+    static String outputs(int count) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < count; ++i)
+            s.append(String.format(Locale.ROOT, "outputid: %d\noutputname: Speaker pair %d\n"
+                    + "plugin: airplay\noutputenabled: %d\n", i, i, i % 2));
+        return s.append("OK\n").toString();
+    }
+
+    // Playlist paths as they are organized on disk, with numeric sort prefixes.
+    static String[] playlistPaths(int count) {
+        String[] paths = new String[count];
+        for (int i = 0; i < count; ++i)
+            paths[i] = String.format(Locale.ROOT, "%02d_Genre %d/%02d_Sender %d/%02d_Stream %d.m3u",
+                    i % 17, i % 17, (i / 17) % 23, (i / 17) % 23, i % 97, i);
+        return paths;
+    }
+
+    static String listplaylists(int count) {
+        StringBuilder s = new StringBuilder();
+        for (String path : playlistPaths(count))
+            s.append("playlist: ").append(path).append("\nLast-Modified: 2024-03-01T12:00:00Z\n");
+        return s.append("OK\n").toString();
+    }
+}
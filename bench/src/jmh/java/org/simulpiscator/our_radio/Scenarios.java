@@ -0,0 +1,390 @@
+package org.simulpiscator.our_radio;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// End-to-end scenarios that drive MpdThread, WsThread, SleepFader and the player
+// backends against the fake servers. EndToEndBenchmark measures them with JMH. main() runs each a number
+// of times per network profile, and fails if a latency budget is exceeded:
+//
+//     ./gradlew :bench:scenarios
+class Scenarios implements AutoCloseable {
+    private static final int TIMEOUT_MS = 10000;
+    private static final int HEARTBEAT_S = 1;
+    private static final int BURST = 16;
+    private static final int PIPELINE_WINDOW = 8;
+
+    // Network conditions to inject.
+    enum Profile {
+        lan(1, 2, 0),
+        wifi(15, 30, 256),
+        congested(60, 120, 32);
+
+        final int delayMs, jitterMs, fragmentBytes;
+
+        Profile(int delayMs, int jitterMs, int fragmentBytes) {
+            this.delayMs = delayMs;
+            this.jitterMs = jitterMs;
+            this.fragmentBytes = fragmentBytes;
+        }
+
+        // Worst case one way: delay and jitter, with a few fragments of a small response.
+        long worstMs() {
+            return delayMs + jitterMs + (fragmentBytes > 0 ? 512 / fragmentBytes : 0);
+        }
+    }
+
+    final Profile profile;
+    final FakeMpdServer mpd;
+    final FakeNotifyServer notify;
+    final FakeOwnToneServer ownTone;
+    final MpdThread thread;
+    final WsThread wsThread;
+    final PlayerBackend mpdBackend, ownToneBackend;
+    private final AtomicReference<Runnable> mOnVolumeChange = new AtomicReference<>();
+    private final AtomicReference<Runnable> mOnCatchUp = new AtomicReference<>();
+
+    Scenarios(Profile profile) throws Exception {
+        this.profile = profile;
+        mpd = new FakeMpdServer(1000);
+        mpd.delayMs = profile.delayMs;
+        mpd.jitterMs = profile.jitterMs;
+        mpd.fragmentBytes = profile.fragmentBytes;
+        notify = new FakeNotifyServer();
+        notify.delayMs = profile.delayMs;
+        notify.jitterMs = profile.jitterMs;
+        notify.startAndWait();
+        mpd.setChangeListener(notify);
+        ownTone = new FakeOwnToneServer(1000);
+        ownTone.delayMs = profile.delayMs;
+        ownTone.jitterMs = profile.jitterMs;
+
+        thread = new MpdThread(new MpdThread.Listener() {
+            @Override
+            public void onMpdError(Exception error) {
+            }
+
+            @Override
+            public void onMpdReconnected() {
+            }
+        });
+        thread.setTimeoutMs(TIMEOUT_MS);
+        thread.setReconnect(() -> MpdConnector.connect(mpd.getHost(), mpd.getPort(), TIMEOUT_MS), null);
+        thread.start(MpdConnector.connect(mpd.getHost(), mpd.getPort(), TIMEOUT_MS));
+
+        wsThread = new WsThread(new WsThread.Listener() {
+            @Override
+            public void onWsError(Exception error) {
+            }
+
+            @Override
+            public void onWsSubsystemChange(String subsystem) {
+                Runnable action = subsystem.equals("volume") ? mOnVolumeChange.getAndSet(null)
+                        : subsystem.isEmpty() ? mOnCatchUp.getAndSet(null) : null;
+                if (action != null)
+                    action.run();
+            }
+        });
+        wsThread.setHeartbeatS(HEARTBEAT_S);
+        wsThread.start(mpd.getHost(), notify.getPort());
+        if (!notify.awaitSubscription(TIMEOUT_MS))
+            throw new IllegalStateException("no subscription");
+
+        mpdBackend = new MpdBackend(thread, false);
+        ownToneBackend = new OwnToneBackend(ownTone.getHost(), ownTone.getPort(), TIMEOUT_MS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        ownToneBackend.close();
+        wsThread.stop();
+        thread.stop();
+        try {
+            notify.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ownTone.close();
+        mpd.close();
+    }
+
+    // A status request through the MpdThread queue. Returns its latency.
+    long statusNs() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        thread.post(new MpdRequest("status", new MpdRequest.OnDoneListener() {
+            @Override
+            void onMpdRequestDone(MpdRequest request) {
+                done.countDown();
+            }
+        }));
+        await(done);
+        return System.nanoTime() - start;
+    }
+
+    // A volume change, the notification it causes, and the status refresh that
+    // follows, as when the user moves the volume slider.
+    long notifyRefreshNs(int volume) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        mOnVolumeChange.set(new Runnable() {
+            @Override
+            public void run() {
+                thread.post(new MpdRequest("status", new MpdRequest.OnDoneListener() {
+                    @Override
+                    void onMpdRequestDone(MpdRequest request) {
+                        done.countDown();
+                    }
+                }));
+            }
+        });
+        thread.post(new MpdRequest("setvol " + volume));
+        await(done);
+        return System.nanoTime() - start;
+    }
+
+    // A status request right after the server dropped the connection. Returns the
+    // time until it completed on the new connection.
+    // Bursts of BURST status requests, on a connection of their own. A window of
+    // 1 sends one command per round trip, as MpdRequest.process() does, 0 command
+    // lists through an MpdThread, and above a pipelined MpdThread.
+    long[] burstNs(int window, int bursts) throws Exception {
+        long[] ns = new long[bursts];
+        SocketConnection connection = MpdConnector.connect(mpd.getHost(), mpd.getPort(), TIMEOUT_MS);
+        if (window == 1) {
+            try {
+                for (int i = 0; i < bursts; ++i) {
+                    long start = System.nanoTime();
+                    for (int j = 0; j < BURST; ++j)
+                        if (!new MpdRequest("status").process(connection, TIMEOUT_MS))
+                            throw new IllegalStateException("status failed");
+                    ns[i] = System.nanoTime() - start;
+                }
+            } finally {
+                connection.close();
+            }
+            return ns;
+        }
+        MpdThread burstThread = new MpdThread(null);
+        burstThread.setTimeoutMs(TIMEOUT_MS);
+        burstThread.setPipelineWindow(window);
+        burstThread.start(connection);
+        try {
+            for (int i = 0; i < bursts; ++i) {
+                final CountDownLatch done = new CountDownLatch(BURST);
+                MpdRequest.OnDoneListener listener = new MpdRequest.OnDoneListener() {
+                    @Override
+                    void onMpdRequestDone(MpdRequest request) {
+                        done.countDown();
+                    }
+                };
+                MpdRequest[] requests = new MpdRequest[BURST];
+                for (int j = 0; j < BURST; ++j)
+                    requests[j] = new MpdRequest("status", listener);
+                long start = System.nanoTime();
+                burstThread.post(requests);
+                await(done);
+                ns[i] = System.nanoTime() - start;
+            }
+        } finally {
+            burstThread.stop();
+        }
+        return ns;
+    }
+
+    long reconnectNs() throws InterruptedException {
+        mpd.disconnectAll();
+        return statusNs();
+    }
+
+    // A sleep fade over durationMs on a connection of its own. Returns by how much
+    // the final stop arrived late at the server, negative if early.
+    long fadeOverrunNs(int durationMs) throws IOException, MpdRequest.ProtocolErrorException {
+        SocketConnection connection = MpdConnector.connect(mpd.getHost(), mpd.getPort(), TIMEOUT_MS);
+        try {
+            mpd.takeLog();
+            long start = System.nanoTime();
+            new SleepFader(connection, TIMEOUT_MS, SleepFader.Curve.logarithmic).run(durationMs);
+            long stopNs = 0;
+            for (FakeMpdServer.Event event : mpd.takeLog())
+                if (event.command.equals("stop"))
+                    stopNs = event.ns;
+            if (stopNs == 0)
+                throw new IllegalStateException("fade did not stop playback");
+            return stopNs - start - durationMs * 1000000L;
+        } finally {
+            connection.close();
+        }
+    }
+
+    // The notify server drops the connection, as when OwnTone restarts. Returns the
+    // time until the client had subscribed again, and asked for a catch-up refresh.
+    long wsRestartNs() throws InterruptedException {
+        CountDownLatch caughtUp = new CountDownLatch(1);
+        mOnCatchUp.set(caughtUp::countDown);
+        long start = System.nanoTime();
+        notify.disconnectAll();
+        await(caughtUp);
+        long ns = System.nanoTime() - start;
+        awaitServerSubscription();
+        return ns;
+    }
+
+    // The notify server stops responding, but leaves the connection open. Returns the
+    // time until the client closed the connection, and the time from then until it
+    // had subscribed again, and asked for a catch-up refresh.
+    long[] wsStallNs() throws InterruptedException {
+        CountDownLatch caughtUp = new CountDownLatch(1);
+        mOnCatchUp.set(caughtUp::countDown);
+        long start = System.nanoTime();
+        notify.stallAll();
+        await(caughtUp);
+        long closedNs = notify.getLastCloseNs();
+        long[] ns = {closedNs - start, System.nanoTime() - closedNs};
+        awaitServerSubscription();
+        return ns;
+    }
+
+    // The client's catch-up may run before the server lists the new connection,
+    // which the next disconnectAll() or stallAll() would then miss.
+    private void awaitServerSubscription() throws InterruptedException {
+        if (!notify.awaitSubscription(TIMEOUT_MS))
+            throw new IllegalStateException("no subscription");
+    }
+
+    // A full player state fetch through the backend, as after connecting.
+    static long stateNs(PlayerBackend backend) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> error = new AtomicReference<>();
+        long start = System.nanoTime();
+        backend.fetchState(PlayerBackend.STATUS | PlayerBackend.CURRENT_SONG | PlayerBackend.OUTPUTS,
+                snapshot -> {
+                    error.set(snapshot.error);
+                    done.countDown();
+                });
+        await(done);
+        if (error.get() != null)
+            throw new IllegalStateException(error.get());
+        return System.nanoTime() - start;
+    }
+
+    // Plays a playlist through the backend, then changes the volume, so the next
+    // state fetch sees a change.
+    static void play(PlayerBackend backend, String playlist) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> error = new AtomicReference<>();
+        backend.play(playlist, e -> {
+            error.set(e);
+            done.countDown();
+        });
+        await(done);
+        if (error.get() != null)
+            throw new IllegalStateException(error.get());
+        backend.setVolume(40);
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        if (!latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            throw new IllegalStateException("request did not complete");
+    }
+
+    // Runs all scenarios, and checks the 99th percentile against its budget.
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+        for (Profile profile : Profile.values()) {
+            try (Scenarios s = new Scenarios(profile)) {
+                long rtt = 2 * profile.worstMs();
+                long[] status = new long[200];
+                for (int i = 0; i < status.length; ++i)
+                    status[i] = s.statusNs();
+                ok &= check(profile, "status", status, rtt + 50);
+
+                // a round trip per command, against one per burst for a window
+                // of at least BURST / 2, or a command list
+                long[] serialBurst = s.burstNs(1, 10);
+                ok &= check(profile, "burst serial", serialBurst, BURST * rtt + 100);
+                long[] pipelinedBurst = s.burstNs(PIPELINE_WINDOW, 50);
+                ok &= check(profile, "burst pipelined", pipelinedBurst, 2 * rtt + 50);
+                long[] listBurst = s.burstNs(0, 50);
+                ok &= check(profile, "burst list", listBurst, rtt + 50);
+                System.out.println(String.format(Locale.ROOT, "%-10s burst of %d: pipelined %.1fx, list %.1fx faster than serial",
+                        profile, BURST, (double) median(serialBurst) / median(pipelinedBurst),
+                        (double) median(serialBurst) / median(listBurst)));
+
+                long[] refresh = new long[100];
+                for (int i = 0; i < refresh.length; ++i)
+                    refresh[i] = s.notifyRefreshNs(i % 100);
+                ok &= check(profile, "notify refresh", refresh, 2 * rtt + profile.worstMs() + 100);
+
+                long[] reconnect = new long[5];
+                for (int i = 0; i < reconnect.length; ++i)
+                    reconnect[i] = s.reconnectNs();
+                // detection, at most MIN_BACKOFF_MS until the new connection, then the replay
+                ok &= check(profile, "reconnect", reconnect, MpdThread.MIN_BACKOFF_MS + 3 * rtt + 200);
+
+                // one round trip for MPD's command list, one per part over HTTP
+                s.mpd.takeLog();
+                play(s.mpdBackend, "playlist 1");
+                long[] mpdState = new long[200];
+                for (int i = 0; i < mpdState.length; ++i)
+                    mpdState[i] = stateNs(s.mpdBackend);
+                ok &= check(profile, "mpd state", mpdState, rtt + 50);
+                play(s.ownToneBackend, "playlist 1");
+                long[] ownToneState = new long[200];
+                for (int i = 0; i < ownToneState.length; ++i)
+                    ownToneState[i] = stateNs(s.ownToneBackend);
+                ok &= check(profile, "owntone state", ownToneState, 3 * rtt + 50);
+                System.out.println(String.format(Locale.ROOT, "%-10s owntone: %d requests, %d not modified, %d connections",
+                        profile, s.ownTone.requests.get(), s.ownTone.notModified.get(), s.ownTone.getConnectionCount()));
+
+                long[] fade = {s.fadeOverrunNs(3000)};
+                ok &= check(profile, "fade overrun", fade, rtt + 100);
+                // a fade duration of 0 stops at once
+                long[] noFade = {s.fadeOverrunNs(0)};
+                ok &= check(profile, "no fade", noFade, 2 * rtt + 100);
+
+                // at most MIN_BACKOFF_MS until reconnecting, then the handshake
+                long wsRecoverMs = WsThread.MIN_BACKOFF_MS + 2 * rtt + 200;
+                long[] wsRestart = new long[5];
+                for (int i = 0; i < wsRestart.length; ++i)
+                    wsRestart[i] = s.wsRestartNs();
+                ok &= check(profile, "ws restart", wsRestart, wsRecoverMs);
+
+                long[] wsDetect = new long[3], wsRecover = new long[3];
+                for (int i = 0; i < wsDetect.length; ++i) {
+                    long[] ns = s.wsStallNs();
+                    wsDetect[i] = ns[0];
+                    wsRecover[i] = ns[1];
+                }
+                // pings go out every HEARTBEAT_S, and a pong is overdue after 1.5 intervals
+                ok &= check(profile, "ws stall detect", wsDetect, 2500 * HEARTBEAT_S + 100);
+                ok &= check(profile, "ws stall recover", wsRecover, wsRecoverMs);
+            }
+        }
+        if (!ok) {
+            System.out.println("latency budget exceeded");
+            System.exit(1);
+        }
+    }
+
+    private static long median(long[] ns) {
+        long[] sorted = ns.clone();
+        Arrays.sort(sorted);
+        return sorted[(sorted.length - 1) / 2];
+    }
+
+    private static boolean check(Profile profile, String scenario, long[] ns, long budgetMs) {
+        long[] sorted = ns.clone();
+        Arrays.sort(sorted);
+        double p50 = sorted[(sorted.length - 1) / 2] / 1e6;
+        double p99 = sorted[(int) Math.ceil(0.99 * sorted.length) - 1] / 1e6;
+        boolean ok = p99 <= budgetMs;
+        System.out.println(String.format(Locale.ROOT, "%-10s %-17s n=%-4d p50 %8.1f ms  p99 %8.1f ms  budget %5d ms  %s",
+                profile, scenario, ns.length, p50, p99, budgetMs, ok ? "ok" : "EXCEEDED"));
+        return ok;
+    }
+}
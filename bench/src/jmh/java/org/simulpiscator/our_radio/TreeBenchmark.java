@@ -0,0 +1,35 @@
+package org.simulpiscator.our_radio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Building the playlist tree, as done when the playlist picker opens.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TreeBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int playlists;
+
+    private List<String> mPaths;
+
+    @Setup
+    public void setup() {
+        mPaths = Arrays.asList(Responses.playlistPaths(playlists));
+    }
+
+    @Benchmark
+    public TreeModel.Node makeTree() {
+        return TreeModel.MakeTree(mPaths, "");
+    }
+}
@@ -0,0 +1,16 @@
+package android.util;
+
+// Stands in for Android's Log when app classes run on a plain JVM.
+public final class Log {
+    private Log() {}
+
+    public static int d(String tag, String msg) { return 0; }
+    public static int i(String tag, String msg) { return 0; }
+    public static int w(String tag, String msg) { return println("W", tag, msg); }
+    public static int e(String tag, String msg) { return println("E", tag, msg); }
+
+    private static int println(String level, String tag, String msg) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}